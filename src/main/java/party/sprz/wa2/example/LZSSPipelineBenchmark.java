@@ -0,0 +1,148 @@
+package party.sprz.wa2.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import party.sprz.wa2.pack.LZSSDecompresser;
+import party.sprz.wa2.pack.PackConstants;
+import party.sprz.wa2.pack.PackEntry;
+import party.sprz.wa2.pack.PackFile;
+
+/**
+ * 大きなLZSS圧縮エントリを配列に読み込むときの、PackFile.readと1つのスレッドでの圧縮解除の速度を比較する例です。
+ *
+ * 引数は、Packファイルのパスと計測する回数です。PackFile.readは、プロセッサが2つ以上ある場合に4MiB以上のエントリを解析と複写の
+ * 2つのスレッドで圧縮解除します。比較には、同じ領域をマップしてLZSSDecompresserで圧縮解除した時間を使います。Packファイルに
+ * 4MiB以上のLZSS圧縮エントリがない場合は、32MiBのエントリを1つ含む一時ファイルを作成して計測します。
+ *
+ * @author Nan
+ *
+ */
+public class LZSSPipelineBenchmark implements PackConstants {
+  private static final int MIN_SIZE = 4 * 1024 * 1024;
+  private static final int SYNTHETIC_SIZE = 32 * 1024 * 1024;
+  private static final int WARMUP = 5;
+
+  public static void main(String[] args) throws IOException {
+    String path = args.length > 0 ? args[0] : "C:\\Leaf\\WHITE ALBUM2\\script.PAK";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    System.out.printf("available processors: %d%n", Runtime.getRuntime().availableProcessors());
+    File file = new File(path);
+    if (file.isFile() && run(file, iterations)) {
+      return;
+    }
+    File tmp = File.createTempFile("pipeline", ".pak");
+    try {
+      synthesize(tmp, new Random(1));
+      run(tmp, iterations);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static boolean run(File file, int iterations) throws IOException {
+    try (PackFile pf = new PackFile(file);
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      List<PackEntry> entries = new ArrayList<>();
+      pf.stream().filter(e -> e.getMethod() == 1 && MIN_SIZE <= e.getSize())
+          .forEach(entries::add);
+      if (entries.isEmpty()) {
+        return false;
+      }
+      for (PackEntry e : entries) {
+        byte[] a = new byte[(int) e.getSize()];
+        byte[] b = new byte[a.length];
+        MappedByteBuffer src = ch.map(FileChannel.MapMode.READ_ONLY, e.getOffset(),
+            e.getCompressedSize());
+        long[] read = new long[iterations];
+        long[] sequential = new long[iterations];
+        for (int i = 0; i < WARMUP + iterations; i++) {
+          long t = System.nanoTime();
+          pf.read(e, ByteBuffer.wrap(a));
+          long r = System.nanoTime() - t;
+          t = System.nanoTime();
+          try (LZSSDecompresser d = new LZSSDecompresser(src.duplicate())) {
+            int off = 0;
+            int n;
+            while (off < b.length && (n = d.decompress(b, off, b.length - off)) != -1) {
+              off += n;
+            }
+          }
+          long s = System.nanoTime() - t;
+          if (WARMUP <= i) {
+            read[i - WARMUP] = r;
+            sequential[i - WARMUP] = s;
+          }
+        }
+        if (!Arrays.equals(a, b)) {
+          throw new IllegalStateException("decoders disagree on " + e.getName());
+        }
+        double r = median(read) / 1e6;
+        double s = median(sequential) / 1e6;
+        double mib = a.length / (double) (1 << 20);
+        System.out.printf("%-24s %7.2f MiB  PackFile.read %8.3f ms (%7.1f MiB/s)"
+            + "  single thread %8.3f ms (%7.1f MiB/s)  %.2fx%n", e.getName(), mib, r,
+            mib / (r / 1e3), s, mib / (s / 1e3), s / r);
+      }
+    }
+    return true;
+  }
+
+  private static double median(long[] a) {
+    long[] s = a.clone();
+    Arrays.sort(s);
+    return s[s.length / 2];
+  }
+
+  // リテラルと、書込み位置から2KiB以内を指す参照が混ざったLZSS圧縮エントリを1つ含むPackファイルを作成する
+  private static void synthesize(File file, Random r) throws IOException {
+    ByteBuffer body =
+        ByteBuffer.allocate(DATA_HEADER_SIZE + SYNTHETIC_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    body.position(DATA_HEADER_SIZE);
+    int out = 0;
+    while (out < SYNTHETIC_SIZE) {
+      int flags = r.nextInt(256);
+      body.put((byte) flags);
+      for (int bit = 0; bit < BLOCKDATA_SIZE; bit++) {
+        if ((flags >>> bit & 1) != 0) {
+          body.put((byte) ('a' + r.nextInt(26)));
+          out++;
+        } else {
+          int len = 3 + r.nextInt(16);
+          int p = (0xFEE + out - 1 - r.nextInt(2048)) & 0xFFF;
+          body.put((byte) p).put((byte) (((p >> 8) << 4) | (len - 3)));
+          out += len;
+        }
+      }
+    }
+    body.putInt(0, body.position()).putInt(4, out);
+
+    ByteBuffer header =
+        ByteBuffer.allocate(PACKHEADER_SIZE + KCAPHEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(KCAP_SIGNATURE.getBytes(PACK_ENCODING)).putInt(0).putInt(0).putInt(1);
+    header.putInt(1).put(Arrays.copyOf("synthetic.txt".getBytes(PACK_ENCODING), ENTRYNAME_SIZE));
+    header.putInt(0).putInt(0).putInt(header.capacity()).putInt(body.position());
+    header.flip();
+    body.flip();
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (header.hasRemaining()) {
+        ch.write(header);
+      }
+      while (body.hasRemaining()) {
+        ch.write(body);
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package party.sprz.wa2.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import party.sprz.wa2.pack.PackBuilder;
+import party.sprz.wa2.pack.PackFile;
+
+/**
+ * コマンドラインから、既存のPackファイルの重複したデータ領域をまとめたPackファイルを作成する例です。
+ *
+ * 引数は、1つ以上の元のPackファイル、作成するPackファイルの順に指定します。複数のPackファイルに同じ名前のエントリがある場合はエラーになります。
+ *
+ * @author Nan
+ *
+ */
+public class PackBuilderMain {
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: PackBuilderMain <src.pak>... <dst.pak>");
+      System.exit(2);
+    }
+    List<PackFile> packs = new ArrayList<>();
+    try {
+      PackBuilder builder = new PackBuilder();
+      for (int i = 0; i < args.length - 1; i++) {
+        PackFile pf = new PackFile(args[i]);
+        packs.add(pf);
+        builder.addAll(pf);
+      }
+      System.out.println(builder.build(new File(args[args.length - 1])));
+    } finally {
+      for (PackFile pf : packs) {
+        pf.close();
+      }
+    }
+  }
+}
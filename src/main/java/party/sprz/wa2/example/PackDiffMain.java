@@ -0,0 +1,40 @@
+package party.sprz.wa2.example;
+
+import java.io.File;
+import java.io.IOException;
+
+import party.sprz.wa2.pack.PackDiff;
+
+/**
+ * コマンドラインから差分を作成または適用する例です。
+ *
+ * 差分を作成する場合は、diff、古いPackファイル、新しいPackファイル、差分の書込み先の順に指定します。差分の書込み先を省略すると比較結果だけを出力します。
+ * 差分を適用する場合は、apply、古いPackファイル、差分、新しいPackファイルの順に指定します。
+ *
+ * @author Nan
+ *
+ */
+public class PackDiffMain {
+  public static void main(String[] args) throws IOException {
+    if (args.length == 4 && args[0].equals("apply")) {
+      PackDiff.apply(new File(args[1]), new File(args[2]), new File(args[3]));
+    } else if ((args.length == 3 || args.length == 4) && args[0].equals("diff")) {
+      PackDiff.Result r = PackDiff.diff(new File(args[1]), new File(args[2]),
+          args.length == 4 ? new File(args[3]) : null);
+      for (String name : r.getAdded()) {
+        System.out.println("A " + name);
+      }
+      for (String name : r.getRemoved()) {
+        System.out.println("D " + name);
+      }
+      for (String name : r.getModified()) {
+        System.out.println("M " + name);
+      }
+      System.out.println(r);
+    } else {
+      System.err.println("usage: PackDiffMain diff <old.pak> <new.pak> [delta]");
+      System.err.println("       PackDiffMain apply <old.pak> <delta> <new.pak>");
+      System.exit(2);
+    }
+  }
+}
@@ -9,6 +9,7 @@ import java.nio.file.Paths;
 import java.util.Enumeration;
 
 import party.sprz.wa2.pack.PackEntry;
+import party.sprz.wa2.pack.PackExtractor;
 import party.sprz.wa2.pack.PackFile;
 import party.sprz.wa2.pack.PackInputStream;
 
@@ -23,7 +24,7 @@ public class PackExample {
         PackEntry entry = e.nextElement();
         System.out.println(entry.getName());
         try (InputStream is = pf.getInputStream(entry)) {
-          byte[] b = new byte[entry.getSize()];
+          byte[] b = new byte[(int) entry.getSize()];
           is.read(b);
           try (FileOutputStream output = new FileOutputStream("out/" + entry.getName())) {
             output.write(b);
@@ -45,7 +46,7 @@ public class PackExample {
       PackEntry entry;
       while ((entry = pis.getNextEntry()) != null) {
         System.out.println(entry.getName());
-        byte[] b = new byte[entry.getSize()];
+        byte[] b = new byte[(int) entry.getSize()];
         pis.read(b);
         try (FileOutputStream output = new FileOutputStream("out/" + entry.getName())) {
           output.write(b);
@@ -56,6 +57,18 @@ public class PackExample {
     }
   }
 
+  /**
+   * PackExtractorを利用した差分展開の例です。2回目以降は変更されたエントリだけを書き込みます。
+   */
+  public static void extractUsingPackExtractor() {
+    try (PackFile pf = new PackFile("C:\\Leaf\\WHITE ALBUM2\\script.PAK")) {
+      PackExtractor.Result r = new PackExtractor(Paths.get("out")).extract(pf);
+      System.out.println(r);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   public static void main(String[] args) {
     readUsingPackInputStream();
   }
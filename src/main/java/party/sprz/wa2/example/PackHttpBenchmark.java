@@ -0,0 +1,88 @@
+package party.sprz.wa2.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import party.sprz.wa2.http.PackHttpServer;
+import party.sprz.wa2.pack.PackEntry;
+import party.sprz.wa2.pack.PackFile;
+
+/**
+ * PackHttpServerに対してローカルで負荷をかけ、スループットを計測する例です。
+ *
+ * 引数は、Packファイルのパス、クライアント・スレッドの数及び計測する秒数です。各クライアントはkeep-aliveの接続を再利用し、
+ * ランダムに選んだエントリを要求します。要求の4分の1は、エントリの途中から始まる範囲を指定します。
+ * システム・プロパティ{@value PackHttpServer#NODELAY_PROPERTY}が指定されていない場合は、サーバを作成する前にtrueに設定します。
+ *
+ * @author Nan
+ *
+ */
+public class PackHttpBenchmark {
+  public static void main(String[] args) throws Exception {
+    String path = args.length > 0 ? args[0] : "C:\\Leaf\\WHITE ALBUM2\\script.PAK";
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    if (System.getProperty(PackHttpServer.NODELAY_PROPERTY) == null) {
+      System.setProperty(PackHttpServer.NODELAY_PROPERTY, "true");
+    }
+
+    try (PackFile pf = new PackFile(path);
+        PackHttpServer server = new PackHttpServer(new InetSocketAddress("127.0.0.1", 0))) {
+      server.addPack("pak", pf);
+      server.start();
+      String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/pak/";
+      List<PackEntry> entries = new ArrayList<>();
+      pf.stream().forEach(entries::add);
+
+      LongAdder requests = new LongAdder();
+      LongAdder bytes = new LongAdder();
+      long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < clients; i++) {
+        long seed = i;
+        Thread t = new Thread(() -> {
+          Random r = new Random(seed);
+          byte[] buf = new byte[64 * 1024];
+          try {
+            while (System.nanoTime() < deadline) {
+              PackEntry e = entries.get(r.nextInt(entries.size()));
+              HttpURLConnection c = (HttpURLConnection) new URL(
+                  base + URLEncoder.encode(e.getName(), "UTF-8").replace("+", "%20"))
+                      .openConnection();
+              if (r.nextInt(4) == 0 && 0 < e.getSize()) {
+                c.setRequestProperty("Range", "bytes=" + r.nextInt((int) e.getSize()) + "-");
+              }
+              // 本文を最後まで読むと、接続はkeep-aliveで再利用される
+              try (InputStream in = c.getInputStream()) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                  bytes.add(n);
+                }
+              }
+              requests.increment();
+            }
+          } catch (IOException ex) {
+            ex.printStackTrace();
+          }
+        });
+        t.start();
+        threads.add(t);
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+
+      System.out.printf("%d clients, %d s: %.0f requests/s, %.1f MB/s%n", clients, seconds,
+          requests.sum() / (double) seconds, bytes.sum() / (double) seconds / (1 << 20));
+      System.out.println(server);
+    }
+  }
+}
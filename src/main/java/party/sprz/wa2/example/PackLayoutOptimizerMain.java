@@ -0,0 +1,30 @@
+package party.sprz.wa2.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+import party.sprz.wa2.pack.PackAccessTrace;
+import party.sprz.wa2.pack.PackLayoutOptimizer;
+
+/**
+ * コマンドラインからPackファイルを最適化する例です。
+ *
+ * 引数は、元のPackファイル、PackAccessTraceで書き込んだアクセス順序のファイル、書込み先のPackファイルの順に指定します。
+ *
+ * @author Nan
+ *
+ */
+public class PackLayoutOptimizerMain {
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("usage: PackLayoutOptimizerMain <src.pak> <trace.txt> <dst.pak>");
+      System.exit(2);
+    }
+    List<String> trace = PackAccessTrace.read(Paths.get(args[1]));
+    PackLayoutOptimizer.Result r =
+        new PackLayoutOptimizer(trace).optimize(new File(args[0]), new File(args[2]));
+    System.out.println(r);
+  }
+}
@@ -0,0 +1,47 @@
+package party.sprz.wa2.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import party.sprz.wa2.pack.PackFile;
+import party.sprz.wa2.pack.PackTextIndex;
+
+/**
+ * コマンドラインから索引を更新して検索する例です。
+ *
+ * 引数は、Packファイル、索引のファイル、検索語の順に指定します。索引のファイルが存在する場合は、変更されたエントリだけを索引し直します。
+ *
+ * @author Nan
+ *
+ */
+public class PackTextIndexMain {
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: PackTextIndexMain <script.pak> <index> [query...]");
+      System.exit(2);
+    }
+    Path path = Paths.get(args[1]);
+    PackTextIndex index = Files.exists(path) ? PackTextIndex.read(path) : new PackTextIndex();
+    try (PackFile pack = new PackFile(new File(args[0]))) {
+      int n = index.update(pack);
+      if (n > 0) {
+        index.write(path);
+      }
+      System.out.println("reindexed " + n + " of " + index.size() + " entries");
+    }
+    for (int i = 2; i < args.length; i++) {
+      Map<String, List<Integer>> byEntry = new LinkedHashMap<>();
+      for (PackTextIndex.Hit h : index.search(args[i])) {
+        byEntry.computeIfAbsent(h.getName(), k -> new ArrayList<>()).add(h.getOffset());
+      }
+      System.out.println(args[i] + ": " + byEntry);
+    }
+  }
+}
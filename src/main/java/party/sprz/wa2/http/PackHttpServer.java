@@ -0,0 +1,348 @@
+package party.sprz.wa2.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import party.sprz.wa2.pack.PackEntry;
+import party.sprz.wa2.pack.PackException;
+import party.sprz.wa2.pack.PackFile;
+
+/**
+ * このクラスは、Packファイルのエントリを展開せずにHTTPで配信する組込みサーバです。
+ *
+ * {@code GET /<pak>/<entry>}に対して、{@link #addPack(String, PackFile)}で登録した名前のPackファイルから
+ * エントリの内容を返します。HEAD要求と、1つの範囲を指定したRange要求に対応します。複数の範囲を指定した要求には全体を返します。
+ * ETagはエントリのデータ領域の位置とサイズから作られるため、If-None-MatchとIf-Rangeで再検証できます。
+ *
+ * 接続はJDKのHTTPサーバの単一のディスパッチ・スレッドが受け付け、keep-aliveで再利用されます。JDKのHTTPサーバは応答ヘッダと本文を
+ * 別々に送るため、Nagleアルゴリズムと遅延ACKが重なると要求ごとに数十ミリ秒待たされます。TCP_NODELAYを有効にするには、
+ * アプリケーションがシステム・プロパティ{@value #NODELAY_PROPERTY}をtrueに設定してください。このプロパティはJVM全体に適用され、
+ * JDKのHTTPサーバが最初に使われたときに一度だけ読まれるため、このクラスは設定しません。起動時に{@code -D}で指定するか、
+ * 最初のサーバを作成する前に設定する必要があります。
+ * 要求の処理は、Java 21以降では要求ごとの仮想スレッドで、それより前はスレッド・プールで実行されます。
+ *
+ * @author Nan
+ *
+ * @see PackFile#createInputStream(PackEntry, long)
+ */
+public class PackHttpServer implements Closeable {
+  /** JDKのHTTPサーバで、受け付けた接続のTCP_NODELAYを有効にするシステム・プロパティの名前です。 */
+  public static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+  private static final Logger LOG = LoggerFactory.getLogger(PackHttpServer.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Map<String, PackFile> packs = new ConcurrentHashMap<>();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder partialRequests = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+
+  /**
+   * 指定されたアドレスで待ち受ける新しいサーバを作成します。要求の受付は{@link #start()}で開始します。
+   *
+   * @param address 待ち受けるアドレス。ポート番号が0の場合は空いているポートを使用する
+   * @throws IOException サーバのソケットを作成できなかった場合
+   */
+  public PackHttpServer(InetSocketAddress address) throws IOException {
+    this.server = HttpServer.create(address, 0);
+    this.executor = newExecutor();
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+  }
+
+  // Java 21以降では要求ごとに仮想スレッドを使う。それより前はデーモン・スレッドのプールを使う
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "PackHttpServer");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  /**
+   * Packファイルを、{@code /<name>/}以下で配信するように登録します。Packファイルはこのサーバを閉じても閉じられません。
+   *
+   * @param name URLに使用する名前
+   * @param pack 配信するPackファイル
+   * @throws IllegalArgumentException 名前が空か、'/'を含む場合
+   */
+  public void addPack(String name, PackFile pack) {
+    Objects.requireNonNull(pack);
+    if (name.isEmpty() || name.indexOf('/') != -1) {
+      throw new IllegalArgumentException("invalid pack name: " + name);
+    }
+    packs.put(name, pack);
+  }
+
+  /**
+   * 登録したPackファイルの配信を停止します。
+   *
+   * @param name 登録した名前
+   * @return 登録されていたPackファイル。登録されていなかった場合はnull
+   */
+  public PackFile removePack(String name) {
+    return packs.remove(name);
+  }
+
+  /**
+   * 要求の受付を開始します。
+   */
+  public void start() {
+    server.start();
+    LOG.info("serving {} pack(s) at {}", packs.size(), getAddress());
+  }
+
+  /**
+   * サーバが待ち受けているアドレスを返します。
+   *
+   * @return 待ち受けているアドレス
+   */
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      requests.increment();
+      String method = exchange.getRequestMethod();
+      boolean head = "HEAD".equals(method);
+      if (!head && !"GET".equals(method)) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+
+      // パスは"/<pak>/<entry>"の形式
+      String path = exchange.getRequestURI().getPath();
+      int slash = path.indexOf('/', 1);
+      PackFile pack = slash == -1 ? null : packs.get(path.substring(1, slash));
+      PackEntry entry = pack == null ? null : pack.getEntry(path.substring(slash + 1));
+      if (entry == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+
+      Headers req = exchange.getRequestHeaders();
+      Headers res = exchange.getResponseHeaders();
+      String etag = etag(entry);
+      long size = entry.getSize();
+      res.set("ETag", etag);
+      res.set("Accept-Ranges", "bytes");
+      res.set("Content-Type", contentType(entry.getName()));
+      if (matches(req.getFirst("If-None-Match"), etag)) {
+        notModified.increment();
+        exchange.sendResponseHeaders(304, -1);
+        return;
+      }
+
+      long start = 0;
+      long length = size;
+      int status = 200;
+      String ifRange = req.getFirst("If-Range");
+      long[] range = ifRange == null || ifRange.trim().equals(etag)
+          ? parseRange(req.getFirst("Range"), size) : null;
+      if (range != null && range.length == 0) {
+        res.set("Content-Range", "bytes */" + size);
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      } else if (range != null) {
+        start = range[0];
+        length = range[1] - range[0] + 1;
+        status = 206;
+        partialRequests.increment();
+        res.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+      }
+
+      // HEADの場合と空の本文の場合は、sendResponseHeadersに-1を渡す必要がある
+      if (head || length == 0) {
+        res.set("Content-Length", Long.toString(length));
+        exchange.sendResponseHeaders(status, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(status, length);
+      send(pack, entry, start, length, exchange.getResponseBody());
+    } catch (IOException | RuntimeException e) {
+      // 応答ヘッダを送信済みの場合は、接続を閉じて本文が不完全であることを伝える
+      LOG.warn("failed to serve {}", exchange.getRequestURI(), e);
+      if (exchange.getResponseCode() == -1) {
+        exchange.sendResponseHeaders(500, -1);
+      } else {
+        throw e;
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void send(PackFile pack, PackEntry entry, long start, long length, OutputStream out)
+      throws IOException {
+    byte[] b = new byte[(int) Math.min(BUFFER_SIZE, length)];
+    if (start == 0 && length == b.length) {
+      // バッファに収まるエントリ全体は、1回の読込みと書込みで送信する
+      if (pack.read(entry, ByteBuffer.wrap(b)) != length) {
+        throw new PackException("Data is broken (entry is shorter than its size)");
+      }
+      out.write(b);
+      out.close();
+      bytesSent.add(length);
+      return;
+    }
+    try (InputStream in = pack.createInputStream(entry, start)) {
+      long remaining = length;
+      while (0 < remaining) {
+        int n = in.read(b, 0, (int) Math.min(b.length, remaining));
+        if (n == -1) {
+          throw new PackException("Data is broken (entry is shorter than its size)");
+        }
+        out.write(b, 0, n);
+        remaining -= n;
+        bytesSent.add(n);
+      }
+    }
+    out.close();
+  }
+
+  // データ領域の位置とサイズが同じであれば、内容も同じとみなす
+  private static String etag(PackEntry e) {
+    return String.format("\"%x-%x-%x-%x\"", e.getOffset(), e.getMethod(), e.getCompressedSize(),
+        e.getSize());
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Rangeヘッダを解釈し、最初と最後の位置の組を返す。ヘッダがない場合、解釈できない場合及び複数の範囲を指定された場合は、
+   * 全体を返すためにnullを返す。範囲がエントリの外にある場合は空の配列を返す。
+   */
+  private static long[] parseRange(String header, long size) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') != -1) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // 末尾からのバイト数
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0 || size == 0) {
+          return new long[0];
+        }
+        return new long[] {Math.max(0, size - suffix), size - 1};
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+      if (start < 0 || end < start) {
+        return null;
+      }
+      if (size <= start) {
+        return new long[0];
+      }
+      return new long[] {start, Math.min(end, size - 1)};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static String contentType(String name) {
+    String type = URLConnection.getFileNameMap().getContentTypeFor(name);
+    return type == null ? DEFAULT_CONTENT_TYPE : type;
+  }
+
+  /**
+   * 受け付けた要求の数を返します。
+   *
+   * @return 要求の数
+   */
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  /**
+   * 範囲を指定して206で応答した要求の数を返します。
+   *
+   * @return 部分的な応答の数
+   */
+  public long getPartialRequests() {
+    return partialRequests.sum();
+  }
+
+  /**
+   * ETagが一致して304で応答した要求の数を返します。
+   *
+   * @return 304で応答した数
+   */
+  public long getNotModified() {
+    return notModified.sum();
+  }
+
+  /**
+   * 送信した本文のバイト数の合計を返します。
+   *
+   * @return 送信したバイト数
+   */
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("requests=%d, partial=%d, notModified=%d, bytesSent=%d", getRequests(),
+        getPartialRequests(), getNotModified(), getBytesSent());
+  }
+
+  /**
+   * 要求の受付を停止し、処理中の要求が終わるまで最大1秒待ってからサーバを閉じます。登録したPackファイルは閉じません。
+   *
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() {
+    server.stop(1);
+    executor.shutdown();
+  }
+}
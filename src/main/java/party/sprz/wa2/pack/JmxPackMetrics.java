@@ -0,0 +1,177 @@
+package party.sprz.wa2.pack;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * このクラスは、計測値を集計してJMXのMXBeanとして公開するPackMetricsを実装します。
+ *
+ * 集計はスレッドセーフで、複数のPackFileから共有できます。
+ *
+ * @author Nan
+ *
+ */
+public class JmxPackMetrics implements PackMetrics, PackMetricsMXBean {
+  /**
+   * registerメソッドで使用されるデフォルトのオブジェクト名です。
+   */
+  public static final String DEFAULT_OBJECT_NAME = "party.sprz.wa2.pack:type=PackMetrics";
+
+  private static final int HISTOGRAM_SIZE = 16;
+
+  private final LongAdder archivesOpened = new LongAdder();
+  private final Map<String, Long> archiveOpenNanos = new ConcurrentHashMap<>();
+  private final LongAdder bytesMapped = new LongAdder();
+  private final LongAdder entriesOpened = new LongAdder();
+  private final LongAdder liveStreams = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+  private final LongAdder diskCacheHits = new LongAdder();
+  private final LongAdder diskCacheMisses = new LongAdder();
+  private final LongAdder compressedBytes = new LongAdder();
+  private final LongAdder decompressedBytes = new LongAdder();
+  private final AtomicLongArray throughput = new AtomicLongArray(HISTOGRAM_SIZE);
+
+  /**
+   * デフォルトのオブジェクト名で、プラットフォームのMBeanサーバーに登録します。
+   *
+   * @throws JMException 登録に失敗した場合
+   */
+  public void register() throws JMException {
+    register(new ObjectName(DEFAULT_OBJECT_NAME));
+  }
+
+  /**
+   * 指定されたオブジェクト名で、プラットフォームのMBeanサーバーに登録します。
+   *
+   * @param name オブジェクト名
+   * @throws JMException 登録に失敗した場合
+   */
+  public void register(ObjectName name) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+  }
+
+  @Override
+  public void archiveOpened(String name, int entryCount, long nanos) {
+    archivesOpened.increment();
+    archiveOpenNanos.put(name, nanos);
+  }
+
+  @Override
+  public void regionMapped(long bytes) {
+    bytesMapped.add(bytes);
+  }
+
+  @Override
+  public void streamOpened(PackEntry entry) {
+    entriesOpened.increment();
+    liveStreams.increment();
+  }
+
+  @Override
+  public void streamClosed(PackEntry entry) {
+    liveStreams.decrement();
+  }
+
+  @Override
+  public void decompressed(long compressedBytes, long originalBytes, long nanos) {
+    this.compressedBytes.add(compressedBytes);
+    this.decompressedBytes.add(originalBytes);
+
+    // bytes/ns * 1000 = MB/s
+    long mbps = nanos <= 0 ? Long.MAX_VALUE : originalBytes * 1000 / nanos;
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(mbps), HISTOGRAM_SIZE - 1);
+    throughput.incrementAndGet(bucket);
+  }
+
+  @Override
+  public void cacheHit(PackEntry entry) {
+    cacheHits.increment();
+  }
+
+  @Override
+  public void cacheMiss(PackEntry entry) {
+    cacheMisses.increment();
+  }
+
+  @Override
+  public void diskCacheHit(PackEntry entry) {
+    diskCacheHits.increment();
+  }
+
+  @Override
+  public void diskCacheMiss(PackEntry entry) {
+    diskCacheMisses.increment();
+  }
+
+  @Override
+  public long getArchivesOpened() {
+    return archivesOpened.sum();
+  }
+
+  @Override
+  public Map<String, Long> getArchiveOpenNanos() {
+    return new TreeMap<>(archiveOpenNanos);
+  }
+
+  @Override
+  public long getBytesMapped() {
+    return bytesMapped.sum();
+  }
+
+  @Override
+  public long getEntriesOpened() {
+    return entriesOpened.sum();
+  }
+
+  @Override
+  public long getLiveStreams() {
+    return liveStreams.sum();
+  }
+
+  @Override
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  @Override
+  public long getDiskCacheHits() {
+    return diskCacheHits.sum();
+  }
+
+  @Override
+  public long getDiskCacheMisses() {
+    return diskCacheMisses.sum();
+  }
+
+  @Override
+  public long getCompressedBytes() {
+    return compressedBytes.sum();
+  }
+
+  @Override
+  public long getDecompressedBytes() {
+    return decompressedBytes.sum();
+  }
+
+  @Override
+  public long[] getThroughputHistogram() {
+    long[] h = new long[HISTOGRAM_SIZE];
+    for (int i = 0; i < h.length; i++) {
+      h[i] = throughput.get(i);
+    }
+    return h;
+  }
+}
@@ -4,8 +4,10 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.BitSet;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.zip.Checksum;
 
 /**
  * このクラスは、Packファイル形式で使われているLZSS圧縮解除をサポートします。
@@ -20,24 +22,30 @@ public class LZSSDecompresser implements Closeable, PackConstants {
   private int compressedSize = -1;
   private int originalSize = -1;
 
+  private static final int WINDOW_MASK = SLIDING_WINDOW_SIZE - 1;
+  // フラグ・レジスタが空であることを示す番兵ビットのみの値
+  private static final int FLAG_EMPTY = 1;
+
   private byte[] dicTable = new byte[SLIDING_WINDOW_SIZE];
   private int currDicPos = SLIDING_WINDOW_SIZE - MAXIMUM_REFERENCE_LENGTH;
 
-  private int rDataRemaining = 0;
   private int wDataRemaining = 0;
 
-  private BitSet flag = new BitSet(BLOCKDATA_SIZE);
-  private int blockDataRemaining = 0;
+  // 下位ビットから順に未処理のフラグを保持し、その上に番兵ビットを1つ置く
+  private int flagRegister = FLAG_EMPTY;
 
-  private int referenceLength = 0;
+  private int referencePos = 0;
   private int referenceRemaining = 0;
-  private byte[] referenceCache = new byte[MAXIMUM_REFERENCE_LENGTH];
 
   private boolean closed;
   private int bytesRead;
   private int bytesWritten;
 
   private ByteBuffer dataBuf;
+  // 入力がヒープ上の配列の場合はその配列とオフセット。8リテラルのグループを一括で複写するために使う
+  private final byte[] inArray;
+  private final int inArrayOffset;
+  private Checksum checksum;
 
   /**
    * 新しいデコンプレッサを作成します。
@@ -65,11 +73,17 @@ public class LZSSDecompresser implements Closeable, PackConstants {
    * @param b Packファイル内の1エントリ分のデータ領域のバイトバッファ
    */
   public LZSSDecompresser(ByteBuffer buf) {
+    if (buf.hasArray()) {
+      this.inArray = buf.array();
+      this.inArrayOffset = buf.arrayOffset();
+    } else {
+      this.inArray = null;
+      this.inArrayOffset = 0;
+    }
     this.dataBuf = buf.asReadOnlyBuffer();
     dataBuf.order(ByteOrder.LITTLE_ENDIAN);
     readDataHeader();
 
-    this.rDataRemaining = dataBuf.remaining();
     this.wDataRemaining = originalSize;
   }
 
@@ -121,6 +135,43 @@ public class LZSSDecompresser implements Closeable, PackConstants {
     return bytesWritten;
   }
 
+  /**
+   * 圧縮解除したデータで更新するチェックサムを設定します。
+   *
+   * 設定したチェックサムは、decompressメソッドで出力されたバイトで圧縮解除と同時に更新されます。nullを指定すると更新を行いません。
+   *
+   * @param checksum 更新するチェックサム。不要な場合はnull
+   */
+  public void setChecksum(Checksum checksum) {
+    this.checksum = checksum;
+  }
+
+  /**
+   * 圧縮解除したデータで更新しているチェックサムを返します。
+   *
+   * @return チェックサム。設定されていない場合はnull
+   */
+  public Checksum getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * 圧縮解除が正しく終了したかどうかを検査します。decompressメソッドが-1を返したあとで呼び出してください。
+   *
+   * 圧縮解除時のサイズに達する前に圧縮データが途切れている場合や、最後の参照が圧縮解除時のサイズを超えている場合はPackExceptionをスローします。
+   *
+   * @throws PackException 圧縮データが壊れている場合
+   */
+  public void checkIntegrity() throws PackException {
+    ensureOpen();
+    if (0 < wDataRemaining) {
+      throw new PackException("Data is broken (compressed data is truncated)");
+    }
+    if (0 < referenceRemaining) {
+      throw new PackException("Data is broken (reference exceeds original size)");
+    }
+  }
+
   /**
    * 指定されたバッファにバイトを圧縮解除します。実際に圧縮解除されたバイト数を返します。
    *
@@ -157,109 +208,187 @@ public class LZSSDecompresser implements Closeable, PackConstants {
       readLength = wDataRemaining;
     }
 
-    int oldDataRemaining = rDataRemaining;
     int n = decompressBytes(b, off, readLength);
     if (n == -1) {
       return -1;
     }
 
-    bytesRead += (oldDataRemaining - rDataRemaining);
+    if (checksum != null) {
+      checksum.update(b, off, n);
+    }
     bytesWritten += n;
     return n;
   }
 
-  private int decompressBytes(byte[] b, int off, int len) {
-    int c = decompressByte();
-    if (c == -1) {
-      return -1;
+  /**
+   * 指定されたバイトバッファにバイトを圧縮解除します。実際に圧縮解除されたバイト数を返します。
+   *
+   * バッファの現在位置から残りの領域に書き込み、書き込んだバイト数だけ位置を進めます。ダイレクト・バッファを指定した場合は、
+   * 中間バッファを割り当てずに、スライディング窓から一括で書き込みます。
+   *
+   * @param dst 圧縮解除されるデータ用のバッファ
+   * @return 圧縮解除される実効バイト数
+   * @throws ReadOnlyBufferException dstが読込み専用の場合
+   */
+  public int decompress(ByteBuffer dst) {
+    Objects.requireNonNull(dst);
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
     }
-
-    b[off] = (byte) c;
-
-    int i = 1;
-    for (; i < len; i++) {
-      c = decompressByte();
-      if (c == -1) {
-        break;
+    int len = dst.remaining();
+    if (len == 0) {
+      return 0;
+    }
+    if (dst.hasArray()) {
+      int n = decompress(dst.array(), dst.arrayOffset() + dst.position(), len);
+      if (0 < n) {
+        dst.position(dst.position() + n);
       }
-      b[off + i] = (byte) c;
+      return n;
     }
-    wDataRemaining -= i;
-    return i;
-  }
+    ensureOpen();
 
-  private int decompressByte() {
-    if (0 < referenceRemaining) {
-      int referenceIndex = referenceLength - referenceRemaining;
-      int ref = Byte.toUnsignedInt(referenceCache[referenceIndex]);
-      referenceRemaining--;
-      return ref;
+    if (wDataRemaining <= 0) {
+      return -1;
     }
-    if (blockDataRemaining == 0) {
-      if (readFlag() == null) {
-        return -1;
+
+    // 窓の書込み位置から窓の端までを出力先として配列と同じ処理で圧縮解除し、窓から出力先へ一括で複写する。
+    // 出力先と窓が同じ配列で同じ位置から始まるため、出力の書込みと窓の書込みは同じ要素に同じ値を書き込む
+    int pos = dst.position();
+    int remaining = Math.min(len, wDataRemaining);
+    int n = 0;
+    while (n < remaining) {
+      int start = currDicPos;
+      int chunk = Math.min(remaining - n, SLIDING_WINDOW_SIZE - start);
+      int r = decompressBytes(dicTable, start, chunk);
+      if (r == -1) {
+        break;
+      }
+      dst.put(dicTable, start, r);
+      n += r;
+      if (r < chunk) {
+        break;
       }
-      blockDataRemaining = BLOCKDATA_SIZE;
     }
-
-    int blockDataIndex = BLOCKDATA_SIZE - blockDataRemaining;
-    blockDataRemaining--;
-
-    int r1 = readCompressedByte();
-    if (r1 == -1) {
+    if (n == 0) {
       return -1;
     }
-    if (flag.get(blockDataIndex)) {
-      readDirect(r1);
-      return r1;
-    }
 
-    int r2 = readCompressedByte();
-    if (r2 == -1) {
-      return -1;
+    if (checksum != null) {
+      ByteBuffer written = dst.duplicate();
+      written.flip().position(pos);
+      checksum.update(written);
     }
-    referenceLength = readUsingTable(r1, r2);
-    referenceRemaining = referenceLength - 1;
-    return Byte.toUnsignedInt(referenceCache[0]);
+    bytesWritten += n;
+    return n;
   }
 
-  private BitSet readFlag() {
-    int r;
-    if ((r = readCompressedByte()) == -1) {
-      return null;
-    }
+  private int decompressBytes(byte[] b, int off, int len) {
+    // ホットループ中はフィールドをローカル変数に保持し、終了時に書き戻す
+    final byte[] dic = dicTable;
+    final ByteBuffer in = dataBuf;
+    final int inLimit = in.limit();
+    final int inStart = in.position();
+    int inPos = inStart;
+    int flags = flagRegister;
+    int dicPos = currDicPos;
+    int refPos = referencePos;
+    int refRemaining = referenceRemaining;
+
+    final byte[] inArr = inArray;
+    final int inArrOff = inArrayOffset;
+
+    int i = off;
+    final int end = off + len;
+    while (i < end) {
+      if (0 < refRemaining) {
+        int run = Math.min(refRemaining, end - i);
+        int dist = (dicPos - refPos) & WINDOW_MASK;
+        if ((dist == 0 || run <= dist) && refPos + run <= SLIDING_WINDOW_SIZE
+            && dicPos + run <= SLIDING_WINDOW_SIZE) {
+          // 書込み位置と重ならず、窓の端をまたがない参照は一括で複写する
+          System.arraycopy(dic, refPos, b, i, run);
+          System.arraycopy(b, i, dic, dicPos, run);
+        } else if (dist == 1) {
+          // 直前の1バイトを繰り返す参照は、同じ値で埋める
+          byte d = dic[refPos];
+          Arrays.fill(b, i, i + run, d);
+          for (int k = 0; k < run; k++) {
+            dic[(dicPos + k) & WINDOW_MASK] = d;
+          }
+        } else {
+          for (int k = 0; k < run; k++) {
+            byte d = dic[(refPos + k) & WINDOW_MASK];
+            dic[(dicPos + k) & WINDOW_MASK] = d;
+            b[i + k] = d;
+          }
+        }
+        refPos = (refPos + run) & WINDOW_MASK;
+        dicPos = (dicPos + run) & WINDOW_MASK;
+        i += run;
+        refRemaining -= run;
+        continue;
+      }
 
-    for (int i = 0; i < BLOCKDATA_SIZE; i++) {
-      flag.set(i, ((r >>> i) & 1) == 1);
-    }
-    return flag;
-  }
+      if (flags == FLAG_EMPTY) {
+        if (inPos >= inLimit) {
+          break;
+        }
+        int f = Byte.toUnsignedInt(in.get(inPos++));
+        if (f == 0xFF && BLOCKDATA_SIZE <= end - i && BLOCKDATA_SIZE <= inLimit - inPos
+            && dicPos + BLOCKDATA_SIZE <= SLIDING_WINDOW_SIZE) {
+          // 8つのリテラルが続くグループは、フラグを1ビットずつ調べずに一括で複写する
+          if (inArr != null) {
+            System.arraycopy(inArr, inArrOff + inPos, b, i, BLOCKDATA_SIZE);
+          } else {
+            for (int k = 0; k < BLOCKDATA_SIZE; k++) {
+              b[i + k] = in.get(inPos + k);
+            }
+          }
+          System.arraycopy(b, i, dic, dicPos, BLOCKDATA_SIZE);
+          inPos += BLOCKDATA_SIZE;
+          dicPos = (dicPos + BLOCKDATA_SIZE) & WINDOW_MASK;
+          i += BLOCKDATA_SIZE;
+          continue;
+        }
+        flags = f | (1 << BLOCKDATA_SIZE);
+      }
 
-  private int readDirect(int r) {
-    dicTable[currDicPos] = (byte) r;
-    currDicPos = (currDicPos + 1) & 0xFFF;
-    return 1;
-  }
+      if (inPos >= inLimit) {
+        break;
+      }
+      int r1 = Byte.toUnsignedInt(in.get(inPos++));
+      if ((flags & 1) != 0) {
+        flags >>>= 1;
+        byte d = (byte) r1;
+        dic[dicPos] = d;
+        dicPos = (dicPos + 1) & WINDOW_MASK;
+        b[i++] = d;
+        continue;
+      }
 
-  private int readUsingTable(int r1, int r2) {
-    int position = r1 + (((r2 >>> 4) & 0xF) << 8);
-    int length = (r2 & 0xF) + 3;
-    for (int i = 0; i < length; i++) {
-      byte d = dicTable[(position + i) & 0xFFF];
-      dicTable[currDicPos] = d;
-      currDicPos = (currDicPos + 1) & 0xFFF;
-      referenceCache[i] = d;
+      if (inPos >= inLimit) {
+        break;
+      }
+      int r2 = Byte.toUnsignedInt(in.get(inPos++));
+      flags >>>= 1;
+      refPos = r1 | ((r2 & 0xF0) << 4);
+      refRemaining = (r2 & 0xF) + 3;
     }
-    return length;
-  }
 
-  private int readCompressedByte() {
-    if (dataBuf.remaining() <= 0) {
+    in.position(inPos);
+    flagRegister = flags;
+    currDicPos = dicPos;
+    referencePos = refPos;
+    referenceRemaining = refRemaining;
+    bytesRead += inPos - inStart;
+
+    int n = i - off;
+    if (n == 0) {
       return -1;
     }
-    int i = Byte.toUnsignedInt(dataBuf.get());
-    rDataRemaining = dataBuf.remaining();
-    return i;
+    wDataRemaining -= n;
+    return n;
   }
 
   /**
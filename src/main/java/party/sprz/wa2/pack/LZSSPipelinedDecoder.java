@@ -0,0 +1,308 @@
+package party.sprz.wa2.pack;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * このクラスは、大きなLZSS圧縮エントリを2つのスレッドで並行して圧縮解除します。
+ *
+ * 解析スレッドはフラグとトークンの列を読み、リテラルの範囲と参照を簡潔なトークン・ブロックに書き出します。呼出し元のスレッドは
+ * 受け取ったブロックに従って出力配列への複写を実行します。2つのスレッドの間は、上限のあるブロックのリングでつながれます。
+ * 出力全体を1つの配列に書き込むため、参照はスライディング窓を経由せずに出力配列から直接複写されます。
+ *
+ * 解析スレッドは入力のバッファを直接読むため、decodeは正常に終了した場合も例外をスローした場合も、解析スレッドが終了するまで待ってから戻ります。
+ * そのため、呼出し元はdecodeから戻ったあとで入力のマップされた領域を解放できます。
+ *
+ * @author Nan
+ *
+ */
+final class LZSSPipelinedDecoder implements PackConstants {
+  /** パイプラインで圧縮解除するエントリの、圧縮解除時の最小サイズです。 */
+  static final int THRESHOLD = 4 * 1024 * 1024;
+
+  private static final int WINDOW_SIZE = LZSSDecompresser.SLIDING_WINDOW_SIZE;
+  private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+  // 圧縮解除を始めるときの窓の書込み位置
+  private static final int WINDOW_START = WINDOW_SIZE - LZSSDecompresser.MAXIMUM_REFERENCE_LENGTH;
+
+  // 1ブロックに入るトークンの数と、リングに置くブロックの数
+  private static final int BLOCK_TOKENS = 8192;
+  private static final int RING_SIZE = 4;
+
+  private static final int TRUNCATED = 1;
+  private static final int OVERRUN = 2;
+  // 解析の終了を示すブロック。リングには戻さない
+  private static final int[] END = {-1};
+
+  private static final ExecutorService PARSERS = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "LZSSPipelinedDecoder");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final ByteBuffer src;
+  private final int originalSize;
+  private final BlockingQueue<int[]> full = new ArrayBlockingQueue<>(RING_SIZE);
+  private final BlockingQueue<int[]> free = new ArrayBlockingQueue<>(RING_SIZE + 1);
+  // 解析を始めたか、呼出し元が解析を始めさせないことにした場合にtrue
+  private final AtomicBoolean started = new AtomicBoolean();
+  private final CountDownLatch parsed = new CountDownLatch(1);
+  private int limit;
+  private volatile int error;
+  private volatile RuntimeException failure;
+  private volatile int bytesRead;
+
+  /**
+   * 新しいデコーダを作成します。
+   *
+   * @param buf Packファイル内の1エントリ分のデータ領域のバイトバッファ
+   */
+  LZSSPipelinedDecoder(ByteBuffer buf) {
+    this.src = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    int compressedSize = src.getInt();
+    this.originalSize = src.getInt();
+    if (originalSize < compressedSize) {
+      throw new IllegalArgumentException("invalid size");
+    }
+    for (int i = 0; i < RING_SIZE + 1; i++) {
+      free.add(new int[1 + BLOCK_TOKENS * 2]);
+    }
+  }
+
+  /**
+   * パイプラインで圧縮解除するかどうかを返します。
+   *
+   * @param size エントリの圧縮解除時のサイズ
+   * @return 2つのスレッドで圧縮解除する価値がある場合はtrue
+   */
+  static boolean isWorthwhile(long size) {
+    return THRESHOLD <= size && 1 < Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * データ領域のヘッダに記録された、圧縮解除時のサイズを返します。
+   *
+   * @return 圧縮解除時のサイズ
+   */
+  int getSize() {
+    return originalSize;
+  }
+
+  /**
+   * 読み込んだ圧縮データのバイト数を返します。decodeの完了後に呼び出してください。
+   *
+   * @return 読み込んだバイト数
+   */
+  int getTotalIn() {
+    return bytesRead;
+  }
+
+  /**
+   * エントリを配列に圧縮解除します。lenバイトを書き込んだ時点で、残りの圧縮データは検査せずに終了します。
+   *
+   * @param b 書込み先の配列
+   * @param off 書込みの開始オフセット
+   * @param len 書き込む最大バイト数
+   * @return 書き込んだバイト数
+   * @throws PackException 圧縮データが壊れている場合、または元のサイズまで圧縮解除したときに最後の参照が元のサイズを超える場合
+   */
+  int decode(byte[] b, int off, int len) throws PackException {
+    if (off < 0 || len < 0 || b.length - off < len) {
+      throw new IndexOutOfBoundsException();
+    }
+    limit = Math.min(len, originalSize);
+    Future<?> parser = PARSERS.submit(() -> {
+      if (started.compareAndSet(false, true)) {
+        try {
+          parse();
+        } finally {
+          parsed.countDown();
+        }
+      }
+    });
+    try {
+      execute(b, off);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PackException("Interrupted while decoding");
+    } finally {
+      parser.cancel(true);
+      awaitParser();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    if (error == TRUNCATED) {
+      throw new PackException("Data is broken (compressed data is truncated)");
+    }
+    if (error == OVERRUN) {
+      throw new PackException("Data is broken (reference exceeds original size)");
+    }
+    return limit;
+  }
+
+  // 解析スレッドが入力を読まなくなるまで待つ。呼出し元が割り込まれていても待ち、割込み状態は戻る前に復元する
+  private void awaitParser() {
+    if (started.compareAndSet(false, true)) {
+      // 解析はまだ始まっておらず、これから始まることもない
+      return;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        parsed.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // 解析スレッド。例外が発生しても、終端のブロックを送って呼出し元を待たせないようにする
+  private void parse() {
+    try {
+      error = parseTokens();
+    } catch (InterruptedException e) {
+      // 呼出し元が中断した
+      return;
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+    try {
+      full.put(END);
+    } catch (InterruptedException e) {
+      // 呼出し元が中断した
+    }
+  }
+
+  // リテラルの範囲は(-長さ, 入力位置)、参照は(長さ, 窓の位置)の組としてブロックに書き込む
+  private int parseTokens() throws InterruptedException {
+    int inPos = src.position();
+    final int inLimit = src.limit();
+    final int limit = this.limit;
+    int out = 0;
+    int flags = 1;
+    int[] block = free.take();
+    int n = 0;
+    int err = 0;
+
+    while (out < limit) {
+      if (flags == 1) {
+        if (inPos >= inLimit) {
+          err = TRUNCATED;
+          break;
+        }
+        flags = Byte.toUnsignedInt(src.get(inPos++)) | (1 << BLOCKDATA_SIZE);
+      }
+
+      if (n == BLOCK_TOKENS) {
+        block[0] = n;
+        full.put(block);
+        block = free.take();
+        n = 0;
+      }
+
+      if ((flags & 1) != 0) {
+        // 次のフラグ・バイトまでに続くリテラルを1つの範囲にまとめる
+        int start = inPos;
+        int len = 0;
+        while ((flags & 1) != 0 && flags != 1 && inPos < inLimit && out + len < limit) {
+          flags >>>= 1;
+          inPos++;
+          len++;
+        }
+        if (len == 0) {
+          err = TRUNCATED;
+          break;
+        }
+        block[1 + n * 2] = -len;
+        block[2 + n * 2] = start;
+        n++;
+        out += len;
+        continue;
+      }
+
+      if (inLimit - inPos < 2) {
+        err = TRUNCATED;
+        break;
+      }
+      int r1 = Byte.toUnsignedInt(src.get(inPos++));
+      int r2 = Byte.toUnsignedInt(src.get(inPos++));
+      flags >>>= 1;
+      int len = (r2 & 0xF) + 3;
+      if (limit - out < len) {
+        // 書込みの上限を超える最後の参照は切り詰める。上限が元のサイズの場合は、LZSSDecompresser.checkIntegrityと同様に壊れたデータとする
+        if (limit == originalSize) {
+          err = OVERRUN;
+        }
+        len = limit - out;
+      }
+      block[1 + n * 2] = len;
+      block[2 + n * 2] = r1 | ((r2 & 0xF0) << 4);
+      n++;
+      out += len;
+    }
+
+    bytesRead = inPos - src.position() + DATA_HEADER_SIZE;
+    block[0] = n;
+    full.put(block);
+    return err;
+  }
+
+  // 呼出し元のスレッド。ブロックに従って出力配列に複写する
+  private void execute(byte[] b, int off) throws InterruptedException {
+    final ByteBuffer in = src.duplicate();
+    int o = 0;
+    while (true) {
+      int[] block = full.take();
+      int n = block[0];
+      if (n < 0) {
+        break;
+      }
+      for (int k = 0; k < n; k++) {
+        int len = block[1 + k * 2];
+        int arg = block[2 + k * 2];
+        if (len < 0) {
+          in.position(arg);
+          in.get(b, off + o, -len);
+          o -= len;
+          continue;
+        }
+
+        // 窓の位置を、出力の何バイト前かに変換する。距離0は窓を1周した位置を指す
+        int dist = (o + WINDOW_START - arg) & WINDOW_MASK;
+        if (dist == 0) {
+          dist = WINDOW_SIZE;
+        }
+        int s = o - dist;
+        if (s < 0) {
+          // 圧縮解除の開始前の窓は0で埋められている
+          for (int i = 0; i < len; i++) {
+            b[off + o + i] = s + i < 0 ? 0 : b[off + s + i];
+          }
+        } else if (len <= dist) {
+          System.arraycopy(b, off + s, b, off + o, len);
+        } else if (dist == 1) {
+          Arrays.fill(b, off + o, off + o + len, b[off + s]);
+        } else {
+          for (int i = 0; i < len; i++) {
+            b[off + o + i] = b[off + s + i];
+          }
+        }
+        o += len;
+      }
+      free.put(block);
+    }
+  }
+}
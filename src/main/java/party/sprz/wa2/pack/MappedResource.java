@@ -0,0 +1,110 @@
+package party.sprz.wa2.pack;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * このクラスは、Packファイルが保持するマップされた領域などのリソースを、closeの呼出し時またはGC時に一度だけ解放します。
+ *
+ * finalizeメソッドとは異なり、所有者のオブジェクトはファイナライザ・キューを経由せずに回収されます。システム・プロパティ
+ * {@value #LEAK_DETECTION_PROPERTY}をtrueにすると、閉じられないまま回収されたリソースを、作成時のスタック・トレースとともにログに出力します。
+ *
+ * @author Nan
+ *
+ */
+class MappedResource implements Runnable {
+  static final String LEAK_DETECTION_PROPERTY = "party.sprz.wa2.pack.leakDetection";
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedResource.class);
+  private static final Cleaner CLEANER = Cleaner.create();
+  private static final boolean LEAK_DETECTION = Boolean.getBoolean(LEAK_DETECTION_PROPERTY);
+  private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+  private final String name;
+  private final Throwable origin;
+  private final ByteBuffer[] regions;
+  private final Runnable onRelease;
+  private final Cleaner.Cleanable cleanable;
+  private volatile boolean closed;
+
+  /**
+   * 新しいリソースを作成し、所有者がGCされたときに解放されるように登録します。
+   *
+   * regionsとonReleaseは所有者を参照してはいけません。
+   *
+   * @param owner リソースの所有者
+   * @param name リーク検出時に出力する名前
+   * @param regions 解放時にアンマップする領域。ない場合はnull
+   * @param onRelease 解放時に実行する処理。ない場合はnull
+   */
+  MappedResource(Object owner, String name, ByteBuffer[] regions, Runnable onRelease) {
+    this.name = name;
+    this.origin = LEAK_DETECTION ? new Throwable("created here") : null;
+    this.regions = regions;
+    this.onRelease = onRelease;
+    this.cleanable = CLEANER.register(owner, this);
+  }
+
+  /**
+   * リソースを明示的に解放します。2回目以降の呼出しは何も行いません。
+   */
+  void close() {
+    closed = true;
+    cleanable.clean();
+  }
+
+  @Override
+  public void run() {
+    if (!closed && origin != null) {
+      LOG.warn("{} was not closed before being garbage collected", name, origin);
+    }
+    if (regions != null) {
+      unmap(regions);
+    }
+    if (onRelease != null) {
+      onRelease.run();
+    }
+  }
+
+  /**
+   * マップされた領域をただちにアンマップします。アンマップできない実行環境では何も行わず、GCによる解放を待ちます。
+   *
+   * アンマップした領域とそのビューにアクセスしてはいけません。
+   *
+   * @param regions FileChannel.mapで作成された領域
+   */
+  static void unmap(ByteBuffer... regions) {
+    if (INVOKE_CLEANER == null) {
+      return;
+    }
+    for (ByteBuffer buf : regions) {
+      if (buf == null || !buf.isDirect()) {
+        continue;
+      }
+      try {
+        INVOKE_CLEANER.invokeExact(buf);
+      } catch (Throwable t) {
+        LOG.debug("failed to unmap region", t);
+      }
+    }
+  }
+
+  private static MethodHandle findInvokeCleaner() {
+    try {
+      Class<?> c = Class.forName("sun.misc.Unsafe");
+      Field f = c.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      MethodType type = MethodType.methodType(void.class, ByteBuffer.class);
+      return MethodHandles.lookup().findVirtual(c, "invokeCleaner", type).bindTo(f.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
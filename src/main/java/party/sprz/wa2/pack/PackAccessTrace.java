@@ -0,0 +1,133 @@
+package party.sprz.wa2.pack;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * このクラスは、PackFileのエントリへのアクセス順序を記録するPackMetricsを実装します。
+ *
+ * 記録したアクセス順序は{@link PackLayoutOptimizer}でPackファイルの配置を最適化するために使用できます。アクセス以外の計測値は、指定されたPackMetricsにそのまま渡されます。
+ *
+ * @author Nan
+ *
+ */
+public class PackAccessTrace implements PackMetrics {
+  private final PackMetrics delegate;
+  private final ConcurrentLinkedQueue<String> sequence = new ConcurrentLinkedQueue<>();
+
+  /**
+   * アクセス順序のみを記録する新しいトレースを作成します。
+   */
+  public PackAccessTrace() {
+    this(PackMetrics.NONE);
+  }
+
+  /**
+   * アクセス順序を記録し、すべての計測値を指定されたPackMetricsにも渡す新しいトレースを作成します。
+   *
+   * @param delegate 計測値を渡すPackMetrics
+   */
+  public PackAccessTrace(PackMetrics delegate) {
+    this.delegate = Objects.requireNonNull(delegate);
+  }
+
+  /**
+   * これまでに記録したエントリの名前を、アクセスされた順序で返します。
+   *
+   * @return アクセスされたエントリの名前のリスト
+   */
+  public List<String> getSequence() {
+    return new ArrayList<>(sequence);
+  }
+
+  /**
+   * 記録したアクセス順序を破棄します。
+   */
+  public void clear() {
+    sequence.clear();
+  }
+
+  /**
+   * 記録したアクセス順序を、1行に1エントリ名のUTF-8テキストとしてファイルに書き込みます。
+   *
+   * @param path 書込み先のファイル
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public void write(Path path) throws IOException {
+    Files.write(path, getSequence(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * writeメソッドで書き込まれたアクセス順序を読み込みます。
+   *
+   * @param path 読込み元のファイル
+   * @return アクセスされたエントリの名前のリスト
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public static List<String> read(Path path) throws IOException {
+    List<String> names = new ArrayList<>();
+    for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      if (!line.isEmpty()) {
+        names.add(line);
+      }
+    }
+    return names;
+  }
+
+  @Override
+  public void entryAccessed(PackEntry entry) {
+    sequence.add(entry.getName());
+    delegate.entryAccessed(entry);
+  }
+
+  @Override
+  public void archiveOpened(String name, int entryCount, long nanos) {
+    delegate.archiveOpened(name, entryCount, nanos);
+  }
+
+  @Override
+  public void regionMapped(long bytes) {
+    delegate.regionMapped(bytes);
+  }
+
+  @Override
+  public void streamOpened(PackEntry entry) {
+    delegate.streamOpened(entry);
+  }
+
+  @Override
+  public void streamClosed(PackEntry entry) {
+    delegate.streamClosed(entry);
+  }
+
+  @Override
+  public void decompressed(long compressedBytes, long originalBytes, long nanos) {
+    delegate.decompressed(compressedBytes, originalBytes, nanos);
+  }
+
+  @Override
+  public void cacheHit(PackEntry entry) {
+    delegate.cacheHit(entry);
+  }
+
+  @Override
+  public void cacheMiss(PackEntry entry) {
+    delegate.cacheMiss(entry);
+  }
+
+  @Override
+  public void diskCacheHit(PackEntry entry) {
+    delegate.diskCacheHit(entry);
+  }
+
+  @Override
+  public void diskCacheMiss(PackEntry entry) {
+    delegate.diskCacheMiss(entry);
+  }
+}
@@ -0,0 +1,373 @@
+package party.sprz.wa2.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * このクラスは、内容が同じエントリのデータ領域を1つにまとめてPackファイルを作成します。
+ *
+ * 追加されたエントリは圧縮解除した内容のハッシュで比較され、内容が同じエントリは最も小さいデータ領域を共有するように、
+ * 同じオフセットと圧縮時のサイズを指すエントリ・ヘッダーとして書き込まれます。KCAP形式のエントリ・ヘッダーは名前とデータ領域の位置だけを持つため、
+ * 作成したPackファイルは既存の読込み処理でそのまま読み込めます。
+ *
+ * 既存のPackファイルのエントリは圧縮されたまま複写されます。このパッケージはLZSSの圧縮を実装していないため、
+ * {@link #add(String, byte[])}で追加した内容は圧縮せずに格納されます。
+ *
+ * @author Nan
+ *
+ */
+public class PackBuilder implements PackConstants {
+  private static final long MAX_OFFSET = 0xFFFFFFFFL;
+  private static final String HASH_ALGORITHM = "SHA-256";
+  // 既存のPackファイルのエントリを圧縮解除しながらハッシュを計算するためのバッファのサイズ
+  private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+  private final List<Item> items = new ArrayList<>();
+  private final Set<String> names = new HashSet<>();
+  // 圧縮解除した内容のハッシュから、そのデータ領域へのマップ。追加された順に並ぶ
+  private final Map<ByteBuffer, Payload> payloads = new LinkedHashMap<>();
+  // 元のPackファイルで既に共有されているデータ領域は、圧縮解除せずに同じものとみなす
+  private final Map<PackFile, Map<Long, Payload>> sources = new IdentityHashMap<>();
+
+  /**
+   * 空の新しいビルダを作成します。
+   */
+  public PackBuilder() {
+  }
+
+  /**
+   * 指定された内容のエントリを、圧縮せずに追加します。
+   *
+   * @param name エントリの名前
+   * @param content エントリの内容。作成が終わるまで変更してはいけません
+   * @return このビルダ
+   * @throws IllegalArgumentException 名前が既に追加されている場合や、Windows-31Jで24バイトを超える場合
+   */
+  public PackBuilder add(String name, byte[] content) {
+    checkName(name);
+    Payload p = new Payload(0, content.length, content.length);
+    p.content = content;
+    addItem(name, hash(content), p);
+    return this;
+  }
+
+  /**
+   * 既存のPackファイルのエントリを、圧縮されたデータ領域のまま追加します。
+   *
+   * 内容を比較するためにエントリを圧縮解除しながらハッシュを計算します。Packファイルは、{@link #build(File)}が終わるまで開いておく必要があります。
+   *
+   * @param pack エントリを含むPackファイル
+   * @param entry 追加するエントリ
+   * @return このビルダ
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalArgumentException 名前が既に追加されている場合
+   */
+  public PackBuilder add(PackFile pack, PackEntry entry) throws IOException {
+    checkName(entry.getName());
+    Map<Long, Payload> shared = sources.computeIfAbsent(pack, k -> new HashMap<>());
+    Payload known = shared.get(entry.getOffset());
+    if (known != null && known.sourceMatches(pack, entry)) {
+      addItem(entry.getName(), null, known);
+      return this;
+    }
+    Payload p = new Payload(entry.getMethod(), entry.getCompressedSize(), entry.getSize());
+    p.source = pack;
+    p.sourceOffset = entry.getOffset();
+    p = addItem(entry.getName(), hash(pack, entry), p);
+    shared.putIfAbsent(entry.getOffset(), p);
+    return this;
+  }
+
+  /**
+   * 既存のPackファイルのすべてのエントリを、エントリ・テーブルの順に追加します。
+   *
+   * @param pack Packファイル
+   * @return このビルダ
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalArgumentException 名前が既に追加されている場合
+   */
+  public PackBuilder addAll(PackFile pack) throws IOException {
+    for (PackEntry e : pack.stream().toArray(PackEntry[]::new)) {
+      add(pack, e);
+    }
+    return this;
+  }
+
+  private void checkName(String name) {
+    if (name.getBytes(PACK_ENCODING).length > ENTRYNAME_SIZE) {
+      throw new IllegalArgumentException("entry name too long: " + name);
+    }
+    if (!names.add(name)) {
+      throw new IllegalArgumentException("duplicate entry name: " + name);
+    }
+  }
+
+  // 内容が同じデータ領域が既にある場合は、より小さい方を残して共有する
+  private Payload addItem(String name, byte[] hash, Payload p) {
+    if (hash != null) {
+      Payload existing = payloads.putIfAbsent(ByteBuffer.wrap(hash), p);
+      if (existing != null) {
+        if (p.compressedSize < existing.compressedSize) {
+          existing.replaceWith(p);
+        }
+        p = existing;
+      }
+    }
+    items.add(new Item(name, p));
+    return p;
+  }
+
+  private static byte[] hash(byte[] content) {
+    return newDigest().digest(content);
+  }
+
+  // エントリ全体をヒープに圧縮解除せず、ストリームから固定長のバッファで読み込みながらハッシュを計算する
+  private static byte[] hash(PackFile pack, PackEntry entry) throws IOException {
+    MessageDigest md = newDigest();
+    byte[] b = new byte[HASH_BUFFER_SIZE];
+    try (InputStream in = pack.createInputStream(entry)) {
+      int n;
+      while ((n = in.read(b)) != -1) {
+        md.update(b, 0, n);
+      }
+    }
+    return md.digest();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * 追加したエントリからPackファイルを作成します。データ領域は、それを最初に参照するエントリの順に配置されます。
+   *
+   * @param dst 作成するPackファイル
+   * @return 作成したPackファイルの統計
+   * @throws PackException Packファイルが大きすぎる場合や、元のPackファイルが壊れている場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public Result build(File dst) throws IOException {
+    Objects.requireNonNull(dst);
+    Result result = new Result();
+    ByteBuffer header = ByteBuffer.allocate(PACKHEADER_SIZE + KCAPHEADER_SIZE * items.size())
+        .order(ByteOrder.LITTLE_ENDIAN);
+    long pos = header.capacity();
+    List<Payload> order = new ArrayList<>();
+    Map<Payload, Boolean> placed = new IdentityHashMap<>();
+    for (Item item : items) {
+      if (placed.putIfAbsent(item.payload, Boolean.TRUE) == null) {
+        item.payload.offset = pos;
+        pos += item.payload.compressedSize;
+        order.add(item.payload);
+      } else {
+        result.duplicates++;
+        result.savedBytes += item.payload.compressedSize;
+        result.savedOriginalBytes += item.payload.size;
+      }
+    }
+    if (pos > MAX_OFFSET + 1) {
+      throw new PackException("Archive too large for KCAP");
+    }
+    result.entries = items.size();
+    result.payloads = order.size();
+    result.size = pos;
+
+    header.put(KCAP_SIGNATURE.getBytes(PACK_ENCODING));
+    header.position(ENTRYCOUNT_OFF);
+    header.putInt(items.size());
+    for (Item item : items) {
+      int base = header.position();
+      header.putInt(base + METHOD_OFF, item.payload.method);
+      byte[] name = item.name.getBytes(PACK_ENCODING);
+      header.position(base + ENTRYNAME_OFF);
+      header.put(name);
+      header.putInt(base + OFFSET_OFF, (int) item.payload.offset);
+      header.putInt(base + K_COMPSIZE_OFF, (int) item.payload.compressedSize);
+      header.position(base + KCAPHEADER_SIZE);
+    }
+    header.flip();
+
+    Path temp = Files.createTempFile(dst.getAbsoluteFile().getParentFile().toPath(),
+        dst.getName(), ".part");
+    Map<String, FileChannel> channels = new HashMap<>();
+    try {
+      try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        while (header.hasRemaining()) {
+          out.write(header);
+        }
+        for (Payload p : order) {
+          if (p.content != null) {
+            ByteBuffer b = ByteBuffer.wrap(p.content);
+            while (b.hasRemaining()) {
+              out.write(b);
+            }
+            continue;
+          }
+          FileChannel in = channels.get(p.source.getName());
+          if (in == null) {
+            in = FileChannel.open(new File(p.source.getName()).toPath(), StandardOpenOption.READ);
+            channels.put(p.source.getName(), in);
+          }
+          long done = 0;
+          while (done < p.compressedSize) {
+            long n = in.transferTo(p.sourceOffset + done, p.compressedSize - done, out);
+            if (n <= 0) {
+              throw new PackException("Data is broken (entry exceeds end of file)");
+            }
+            done += n;
+          }
+        }
+      } finally {
+        for (FileChannel in : channels.values()) {
+          in.close();
+        }
+      }
+      Files.move(temp, dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return result;
+  }
+
+  private static class Item {
+    final String name;
+    final Payload payload;
+
+    Item(String name, Payload payload) {
+      this.name = name;
+      this.payload = payload;
+    }
+  }
+
+  // 1つのデータ領域。contentがnullの場合は、sourceのsourceOffsetから複写する
+  private static class Payload {
+    int method;
+    long compressedSize;
+    final long size;
+    byte[] content;
+    PackFile source;
+    long sourceOffset;
+    long offset;
+
+    Payload(int method, long compressedSize, long size) {
+      this.method = method;
+      this.compressedSize = compressedSize;
+      this.size = size;
+    }
+
+    // より小さいデータ領域に置き換えられている場合は一致しない
+    boolean sourceMatches(PackFile pack, PackEntry e) {
+      return source == pack && method == e.getMethod() && compressedSize == e.getCompressedSize()
+          && sourceOffset == e.getOffset();
+    }
+
+    void replaceWith(Payload p) {
+      method = p.method;
+      compressedSize = p.compressedSize;
+      content = p.content;
+      source = p.source;
+      sourceOffset = p.sourceOffset;
+    }
+  }
+
+  /**
+   * このクラスは、作成したPackファイルの統計を表します。
+   */
+  public static class Result {
+    private int entries;
+    private int payloads;
+    private int duplicates;
+    private long size;
+    private long savedBytes;
+    private long savedOriginalBytes;
+
+    Result() {
+    }
+
+    /**
+     * エントリの数を返します。
+     *
+     * @return エントリの数
+     */
+    public int getEntries() {
+      return entries;
+    }
+
+    /**
+     * 書き込んだデータ領域の数を返します。
+     *
+     * @return データ領域の数
+     */
+    public int getPayloads() {
+      return payloads;
+    }
+
+    /**
+     * 他のエントリとデータ領域を共有するエントリの数を返します。
+     *
+     * @return データ領域を共有するエントリの数
+     */
+    public int getDuplicates() {
+      return duplicates;
+    }
+
+    /**
+     * 作成したPackファイルのサイズを返します。
+     *
+     * @return ファイルのサイズ(バイト)
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * データ領域を共有したことで書き込まずに済んだバイト数を返します。すべてのエントリを読み込む場合の読込み量も同じだけ減ります。
+     *
+     * @return 節約したファイルのサイズ(バイト)
+     */
+    public long getSavedBytes() {
+      return savedBytes;
+    }
+
+    /**
+     * データ領域を共有するエントリの、圧縮解除時のサイズの合計を返します。PackFileは共有されたデータ領域を1度だけ圧縮解除してキャッシュします。
+     *
+     * @return 圧縮解除せずに済むバイト数
+     */
+    public long getSavedOriginalBytes() {
+      return savedOriginalBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "entries=%d, payloads=%d, duplicates=%d, size=%d bytes, saved=%d bytes (%d bytes decompressed)",
+          entries, payloads, duplicates, size, savedBytes, savedOriginalBytes);
+    }
+  }
+}
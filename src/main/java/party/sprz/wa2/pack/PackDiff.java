@@ -0,0 +1,489 @@
+package party.sprz.wa2.pack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * このクラスは、2つのバージョンのPackファイルを比較し、古いPackファイルから新しいPackファイルを再構築するための差分を作成します。
+ *
+ * 同じ名前のエントリは、まず圧縮時のサイズと圧縮されたデータのハッシュで比較されるため、変更のないエントリは圧縮解除されません。
+ * 圧縮されたデータが異なり、圧縮解除時のサイズが同じエントリだけを圧縮解除して内容を比較します。比較は複数のスレッドで並列に行われます。
+ *
+ * 差分は、古いPackファイルからの複写と新しいデータの列で表されます。圧縮されたデータが古いPackファイルのいずれかのエントリと一致するデータ領域は、
+ * 名前が変わっていても複写として表されます。差分の適用結果は新しいPackファイルとバイト単位で一致します。
+ *
+ * @author Nan
+ *
+ */
+public class PackDiff implements PackConstants {
+  private static final int MAGIC = 0x57504446; // "WPDF"
+  private static final int VERSION = 1;
+  private static final String HASH_ALGORITHM = "SHA-256";
+  private static final int COPY = 0;
+  private static final int DATA = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private PackDiff() {
+  }
+
+  /**
+   * 2つのPackファイルのエントリを比較します。
+   *
+   * @param oldPak 古いPackファイル
+   * @param newPak 新しいPackファイル
+   * @return 比較結果
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public static Result diff(File oldPak, File newPak) throws IOException {
+    return diff(oldPak, newPak, null);
+  }
+
+  /**
+   * 2つのPackファイルのエントリを比較し、差分をファイルに書き込みます。
+   *
+   * @param oldPak 古いPackファイル
+   * @param newPak 新しいPackファイル
+   * @param delta 差分の書込み先。書き込まない場合はnull
+   * @return 比較結果
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public static Result diff(File oldPak, File newPak, File delta) throws IOException {
+    try (PackFile oldPack = new PackFile(oldPak); PackFile newPack = new PackFile(newPak)) {
+      PackEntry[] oldTable = oldPack.stream().toArray(PackEntry[]::new);
+      PackEntry[] newTable = newPack.stream().toArray(PackEntry[]::new);
+      byte[][] oldHashes = hashAll(oldPack, oldTable);
+      byte[][] newHashes = hashAll(newPack, newTable);
+
+      Map<String, Integer> oldByName = new HashMap<>();
+      for (int i = 0; i < oldTable.length; i++) {
+        oldByName.putIfAbsent(oldTable[i].getName(), i);
+      }
+      Result result = new Result();
+      Map<String, Integer> newByName = new LinkedHashMap<>();
+      for (int i = 0; i < newTable.length; i++) {
+        newByName.putIfAbsent(newTable[i].getName(), i);
+      }
+      for (String name : oldByName.keySet()) {
+        if (!newByName.containsKey(name)) {
+          result.removed.add(name);
+        }
+      }
+
+      // 圧縮されたデータが異なり、内容が一致する可能性のあるエントリだけを並列に圧縮解除して比較する
+      int[] pairs = newByName.values().stream().mapToInt(Integer::intValue).toArray();
+      int[] states = new int[pairs.length];
+      try {
+        IntStream.range(0, pairs.length).parallel().forEach(k -> {
+          PackEntry ne = newTable[pairs[k]];
+          Integer o = oldByName.get(ne.getName());
+          if (o == null) {
+            states[k] = Result.ADDED;
+            return;
+          }
+          PackEntry oe = oldTable[o];
+          if (oe.getCompressedSize() == ne.getCompressedSize()
+              && Arrays.equals(oldHashes[o], newHashes[pairs[k]])) {
+            states[k] = Result.UNCHANGED;
+          } else if (oe.getSize() == ne.getSize() && ne.getSize() <= Integer.MAX_VALUE) {
+            try {
+              states[k] = Arrays.equals(oldPack.decode(oe), newPack.decode(ne))
+                  ? Result.RECOMPRESSED : Result.MODIFIED;
+            } catch (IOException ex) {
+              throw new UncheckedIOException(ex);
+            }
+          } else {
+            states[k] = Result.MODIFIED;
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      for (int k = 0; k < pairs.length; k++) {
+        result.list(states[k]).add(newTable[pairs[k]].getName());
+      }
+
+      if (delta != null) {
+        writeDelta(oldPak, newPak, oldTable, oldHashes, newTable, newHashes, delta, result);
+      }
+      return result;
+    }
+  }
+
+  private static byte[][] hashAll(PackFile pack, PackEntry[] table) throws IOException {
+    byte[][] hashes = new byte[table.length][];
+    try {
+      IntStream.range(0, table.length).parallel().forEach(i -> {
+        try {
+          MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+          pack.digest(table[i], md);
+          hashes[i] = md.digest();
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        } catch (NoSuchAlgorithmException ex) {
+          throw new IllegalStateException(ex);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return hashes;
+  }
+
+  // 新しいPackファイルを先頭から走査し、古いPackファイルにある圧縮データは複写、それ以外は新しいデータとして書き込む
+  private static void writeDelta(File oldPak, File newPak, PackEntry[] oldTable,
+      byte[][] oldHashes, PackEntry[] newTable, byte[][] newHashes, File delta, Result result)
+      throws IOException {
+    Map<ByteBuffer, Long> oldOffsets = new HashMap<>();
+    for (int i = 0; i < oldTable.length; i++) {
+      if (oldTable[i].getCompressedSize() > 0) {
+        oldOffsets.putIfAbsent(ByteBuffer.wrap(oldHashes[i]), oldTable[i].getOffset());
+      }
+    }
+    Integer[] order = new Integer[newTable.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingLong(i -> newTable[i].getOffset()));
+
+    Path temp = Files.createTempFile(delta.getAbsoluteFile().getParentFile().toPath(),
+        delta.getName(), ".part");
+    try (FileChannel oldCh = FileChannel.open(oldPak.toPath(), StandardOpenOption.READ);
+        FileChannel newCh = FileChannel.open(newPak.toPath(), StandardOpenOption.READ)) {
+      long oldLength = oldCh.size();
+      long newLength = newCh.size();
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(oldLength);
+        out.writeInt(crc(oldCh, 0, headerSize(oldTable.length, oldLength)));
+        out.writeLong(newLength);
+        out.writeInt(crc(newCh, 0, newLength));
+
+        DeltaWriter w = new DeltaWriter(out, newCh);
+        long cursor = 0;
+        for (int i : order) {
+          PackEntry e = newTable[i];
+          long end = e.getOffset() + e.getCompressedSize();
+          if (end <= cursor) {
+            continue;
+          }
+          if (e.getOffset() < cursor) {
+            w.data(cursor, end - cursor);
+          } else {
+            w.data(cursor, e.getOffset() - cursor);
+            Long from = oldOffsets.get(ByteBuffer.wrap(newHashes[i]));
+            if (from != null) {
+              w.copy(from, e.getCompressedSize());
+            } else {
+              w.data(e.getOffset(), e.getCompressedSize());
+            }
+          }
+          cursor = end;
+        }
+        w.data(cursor, newLength - cursor);
+        w.flush();
+        out.writeByte(-1);
+        result.copiedBytes = w.copied;
+        result.literalBytes = w.literal;
+      }
+      Files.move(temp, delta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  // 連続する複写を1つにまとめて書き込む
+  private static class DeltaWriter {
+    private final DataOutputStream out;
+    private final FileChannel src;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private long copyFrom = -1;
+    private long copyLength;
+    long copied;
+    long literal;
+
+    DeltaWriter(DataOutputStream out, FileChannel src) {
+      this.out = out;
+      this.src = src;
+    }
+
+    void copy(long from, long length) throws IOException {
+      if (copyFrom != -1 && copyFrom + copyLength == from) {
+        copyLength += length;
+      } else {
+        flush();
+        copyFrom = from;
+        copyLength = length;
+      }
+      copied += length;
+    }
+
+    void data(long position, long length) throws IOException {
+      if (length <= 0) {
+        return;
+      }
+      flush();
+      out.writeByte(DATA);
+      out.writeLong(length);
+      ByteBuffer b = ByteBuffer.wrap(buf);
+      long done = 0;
+      while (done < length) {
+        b.clear().limit((int) Math.min(buf.length, length - done));
+        int n = src.read(b, position + done);
+        if (n == -1) {
+          throw new PackException("Data is broken (entry exceeds end of file)");
+        }
+        out.write(buf, 0, n);
+        done += n;
+      }
+      literal += length;
+    }
+
+    void flush() throws IOException {
+      if (copyFrom != -1) {
+        out.writeByte(COPY);
+        out.writeLong(copyFrom);
+        out.writeLong(copyLength);
+        copyFrom = -1;
+      }
+    }
+  }
+
+  /**
+   * 差分を古いPackファイルに適用し、新しいPackファイルを作成します。
+   *
+   * 古いPackファイルのサイズとヘッダーが差分の作成時と異なる場合や、作成したファイルのチェックサムが一致しない場合は、PackExceptionをスローします。
+   *
+   * @param oldPak 古いPackファイル
+   * @param delta diffメソッドで書き込まれた差分
+   * @param newPak 作成する新しいPackファイル
+   * @throws PackException 差分を適用できない場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public static void apply(File oldPak, File delta, File newPak) throws IOException {
+    Path temp = Files.createTempFile(newPak.getAbsoluteFile().getParentFile().toPath(),
+        newPak.getName(), ".part");
+    try (FileChannel oldCh = FileChannel.open(oldPak.toPath(), StandardOpenOption.READ);
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(Files.newInputStream(delta.toPath())))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new PackException("Not a PackDiff delta: " + delta);
+      }
+      long oldLength = in.readLong();
+      int oldCrc = in.readInt();
+      long newLength = in.readLong();
+      int newCrc = in.readInt();
+      if (oldCh.size() != oldLength
+          || crc(oldCh, 0, headerSize(readEntryCount(oldCh), oldLength)) != oldCrc) {
+        throw new PackException("Delta does not match " + oldPak);
+      }
+
+      try (FileChannel out = FileChannel.open(temp, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int op;
+        while ((op = in.readByte()) != -1) {
+          if (op == COPY) {
+            long from = in.readLong();
+            long length = in.readLong();
+            if (from < 0 || length < 0 || from + length > oldLength) {
+              throw new PackException("Malformed delta");
+            }
+            long done = 0;
+            while (done < length) {
+              long n = oldCh.transferTo(from + done, length - done, out);
+              if (n <= 0) {
+                throw new PackException("Data is broken (entry exceeds end of file)");
+              }
+              done += n;
+            }
+          } else if (op == DATA) {
+            long length = in.readLong();
+            while (length > 0) {
+              int n = (int) Math.min(buf.length, length);
+              in.readFully(buf, 0, n);
+              ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+              while (b.hasRemaining()) {
+                out.write(b);
+              }
+              length -= n;
+            }
+          } else {
+            throw new PackException("Malformed delta");
+          }
+        }
+        if (out.size() != newLength || crc(out, 0, newLength) != newCrc) {
+          throw new PackException("Checksum mismatch after applying delta");
+        }
+      }
+      Files.move(temp, newPak.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (EOFException e) {
+      throw new PackException("Delta is truncated");
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static long headerSize(int count, long length) {
+    return Math.min(length, PACKHEADER_SIZE + (long) KCAPHEADER_SIZE * count);
+  }
+
+  private static int readEntryCount(FileChannel ch) throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    if (ch.read(b, ENTRYCOUNT_OFF) != 4) {
+      throw new PackException("KCAP Header is broken");
+    }
+    return b.getInt(0);
+  }
+
+  private static int crc(FileChannel ch, long position, long length) throws IOException {
+    Checksum crc = new CRC32C();
+    ByteBuffer b = ByteBuffer.allocate(BUFFER_SIZE);
+    long done = 0;
+    while (done < length) {
+      b.clear().limit((int) Math.min(b.capacity(), length - done));
+      int n = ch.read(b, position + done);
+      if (n == -1) {
+        break;
+      }
+      b.flip();
+      crc.update(b);
+      done += n;
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * このクラスは、2つのPackファイルの比較結果を表します。
+   */
+  public static class Result {
+    static final int ADDED = 0;
+    static final int MODIFIED = 1;
+    static final int RECOMPRESSED = 2;
+    static final int UNCHANGED = 3;
+
+    private final List<String> added = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+    private final List<String> modified = new ArrayList<>();
+    private final List<String> recompressed = new ArrayList<>();
+    private final List<String> unchanged = new ArrayList<>();
+    private long copiedBytes;
+    private long literalBytes;
+
+    Result() {
+    }
+
+    List<String> list(int state) {
+      switch (state) {
+        case ADDED:
+          return added;
+        case MODIFIED:
+          return modified;
+        case RECOMPRESSED:
+          return recompressed;
+        default:
+          return unchanged;
+      }
+    }
+
+    /**
+     * 新しいPackファイルにだけあるエントリの名前を返します。
+     *
+     * @return 追加されたエントリの名前のリスト
+     */
+    public List<String> getAdded() {
+      return Collections.unmodifiableList(added);
+    }
+
+    /**
+     * 古いPackファイルにだけあるエントリの名前を返します。
+     *
+     * @return 削除されたエントリの名前のリスト
+     */
+    public List<String> getRemoved() {
+      return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * 内容が変更されたエントリの名前を返します。
+     *
+     * @return 変更されたエントリの名前のリスト
+     */
+    public List<String> getModified() {
+      return Collections.unmodifiableList(modified);
+    }
+
+    /**
+     * 圧縮されたデータは異なるものの、圧縮解除した内容が同じエントリの名前を返します。
+     *
+     * @return 圧縮し直されたエントリの名前のリスト
+     */
+    public List<String> getRecompressed() {
+      return Collections.unmodifiableList(recompressed);
+    }
+
+    /**
+     * 圧縮されたデータが同じエントリの名前を返します。
+     *
+     * @return 変更のないエントリの名前のリスト
+     */
+    public List<String> getUnchanged() {
+      return Collections.unmodifiableList(unchanged);
+    }
+
+    /**
+     * 差分のうち、古いPackファイルから複写されるバイト数を返します。差分を作成していない場合は0です。
+     *
+     * @return 複写されるバイト数
+     */
+    public long getCopiedBytes() {
+      return copiedBytes;
+    }
+
+    /**
+     * 差分に新しいデータとして含まれるバイト数を返します。差分を作成していない場合は0です。
+     *
+     * @return 新しいデータのバイト数
+     */
+    public long getLiteralBytes() {
+      return literalBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "added=%d, removed=%d, modified=%d, recompressed=%d, unchanged=%d, copied=%d bytes, literal=%d bytes",
+          added.size(), removed.size(), modified.size(), recompressed.size(), unchanged.size(),
+          copiedBytes, literalBytes);
+    }
+  }
+}
@@ -15,9 +15,9 @@ public class PackEntry implements PackConstants, Cloneable {
   private int unknown1;
   @SuppressWarnings("unused")
   private int unknown2;
-  private int offset = -1;
-  private int compressedSize = -1;
-  private int originalSize = -1;
+  private long offset = -1;
+  private long compressedSize = -1;
+  private long originalSize = -1;
 
   /**
    * 指定された名前の新しいPackエントリを作成します。
@@ -51,7 +51,7 @@ public class PackEntry implements PackConstants, Cloneable {
    *
    * @throws IllegalArgumentException 指定されたサイズが0未満の場合
    */
-  public void setSize(int size) {
+  public void setSize(long size) {
     if (size < 0) {
       throw new IllegalArgumentException("invalid entry size");
     }
@@ -63,7 +63,7 @@ public class PackEntry implements PackConstants, Cloneable {
    *
    * @return エントリ・データの圧縮解除時のサイズ。不明の場合は -1
    */
-  public int getSize() {
+  public long getSize() {
     return originalSize;
   }
 
@@ -74,7 +74,7 @@ public class PackEntry implements PackConstants, Cloneable {
    *
    * @return エントリ・データの圧縮時のサイズ。不明の場合は -1
    */
-  public int getCompressedSize() {
+  public long getCompressedSize() {
     return compressedSize;
   }
 
@@ -83,7 +83,7 @@ public class PackEntry implements PackConstants, Cloneable {
    *
    * @param csize 設定される圧縮されたサイズ
    */
-  public void setCompressedSize(int csize) {
+  public void setCompressedSize(long csize) {
     this.compressedSize = csize;
   }
 
@@ -108,9 +108,13 @@ public class PackEntry implements PackConstants, Cloneable {
   /**
    * エントリのオフセットを設定します。
    *
+   * KCAP形式のオフセットは符号なし32ビット値のため、2GBを超えるオフセットも指定できます。
+   *
    * @param offset オフセット
+   *
+   * @throws IllegalArgumentException 指定されたオフセットが0未満の場合
    */
-  public void setOffset(int offset) {
+  public void setOffset(long offset) {
     if (offset < 0) {
       throw new IllegalArgumentException("invalid offset");
     }
@@ -120,9 +124,9 @@ public class PackEntry implements PackConstants, Cloneable {
   /**
    * エントリのオフセットを返します。
    *
-   * @param offset エントリのオフセット。指定されていない場合は -1
+   * @return エントリのオフセット。指定されていない場合は -1
    */
-  public int getOffset() {
+  public long getOffset() {
     return offset;
   }
 }
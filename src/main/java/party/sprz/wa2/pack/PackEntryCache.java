@@ -0,0 +1,312 @@
+package party.sprz.wa2.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * このクラスは、圧縮解除したエントリの内容をディレクトリに保存し、プロセスの再起動後や複数のプロセスの間で共有するためのキャッシュを実装します。
+ *
+ * エントリの内容は(Packファイルのパス、サイズ、更新日時、エントリのオフセットと圧縮時のサイズ)をキーとして、エントリごとに1つのファイルに保存され、
+ * 読込み時にはマップして使用します。書込みは一時ファイルへの書込みと不可分な名前の変更で行われるため、複数のJVMから同時に読み書きしても、
+ * 書込み途中のファイルが読み込まれることはありません。キャッシュの合計サイズが上限を超えると、最後に使用された日時が古いものから削除されます。
+ *
+ * @author Nan
+ *
+ * @see PackFile#setEntryCache(PackEntryCache)
+ */
+public class PackEntryCache {
+  private static final Logger LOG = LoggerFactory.getLogger(PackEntryCache.class);
+
+  private static final int MAGIC = 0x43455057; // "WPEC"
+  private static final String SUFFIX = ".entry";
+  private static final String TEMP_SUFFIX = ".part";
+  // 書込みに失敗したまま残った一時ファイルを削除するまでの時間
+  private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final Path directory;
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final AtomicLong approxBytes = new AtomicLong();
+  private final ReentrantLock trimLock = new ReentrantLock();
+
+  /**
+   * 指定されたディレクトリを使用する新しいキャッシュを作成します。ディレクトリが存在しない場合は作成されます。
+   *
+   * 1つのエントリのサイズが上限の1/8を超える場合は、キャッシュされません。
+   *
+   * @param directory キャッシュ・ファイルを保存するディレクトリ
+   * @param maxBytes キャッシュの合計サイズの上限(バイト)
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public PackEntryCache(Path directory, long maxBytes) throws IOException {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("negative cache size");
+    }
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 8;
+    trim();
+  }
+
+  /**
+   * キャッシュ・ファイルを保存するディレクトリを返します。
+   *
+   * @return キャッシュ・ディレクトリ
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * 指定されたエントリをキャッシュの対象にするかどうかを返します。
+   *
+   * @param e Packファイル・エントリ
+   * @return キャッシュの対象である場合はtrue
+   */
+  public boolean accepts(PackEntry e) {
+    return e.getSize() <= maxEntryBytes;
+  }
+
+  /**
+   * Packファイルを識別するキーを返します。Packファイルが置き換えられるとキーも変わります。
+   *
+   * @param file Packファイル
+   * @return Packファイルのキー
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  String archiveKey(File file) throws IOException {
+    Path p = file.toPath().toAbsolutePath().normalize();
+    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+    return p + "|" + a.size() + "|" + a.lastModifiedTime().toMillis();
+  }
+
+  /**
+   * キャッシュされたエントリの内容を返します。
+   *
+   * 返されるバッファはキャッシュ・ファイル全体をマップしたもので、位置は内容の先頭に設定されています。使用後はアンマップできます。
+   *
+   * @param archiveKey Packファイルのキー
+   * @param e Packファイル・エントリ
+   * @return キャッシュされた内容。キャッシュされていない場合はnull
+   */
+  MappedByteBuffer get(String archiveKey, PackEntry e) {
+    PackEvents.Cache event = new PackEvents.Cache();
+    event.begin();
+    MappedByteBuffer buf = read(archiveKey, e);
+    event.complete(directory.toString(), "get", e, buf != null,
+        buf == null ? 0 : buf.remaining());
+    return buf;
+  }
+
+  private MappedByteBuffer read(String archiveKey, PackEntry e) {
+    String key = entryKey(archiveKey, e);
+    Path path = path(key);
+    MappedByteBuffer buf;
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      buf = ch.map(MapMode.READ_ONLY, 0, ch.size());
+    } catch (NoSuchFileException ex) {
+      return null;
+    } catch (IOException ex) {
+      LOG.debug("failed to read cache file {}", path, ex);
+      return null;
+    }
+
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    if (buf.remaining() < 12 + k.length || buf.getInt() != MAGIC || buf.getInt() != k.length) {
+      MappedResource.unmap(buf);
+      return null;
+    }
+    byte[] stored = new byte[k.length];
+    buf.get(stored);
+    int size = buf.getInt();
+    if (!MessageDigest.isEqual(k, stored) || size != e.getSize() || buf.remaining() != size) {
+      MappedResource.unmap(buf);
+      return null;
+    }
+
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException ex) {
+      // 削除されていても読み込んだ内容は有効
+    }
+    return buf;
+  }
+
+  /**
+   * エントリの内容をキャッシュに保存します。保存に失敗してもエラーにはなりません。
+   *
+   * @param archiveKey Packファイルのキー
+   * @param e Packファイル・エントリ
+   * @param data エントリの圧縮解除された内容。位置から制限までが保存されます
+   */
+  void put(String archiveKey, PackEntry e, ByteBuffer data) {
+    if (data.remaining() != e.getSize() || !accepts(e)) {
+      return;
+    }
+    PackEvents.Cache event = new PackEvents.Cache();
+    event.begin();
+    if (!write(archiveKey, e, data)) {
+      return;
+    }
+    event.complete(directory.toString(), "put", e, false, data.remaining());
+    if (approxBytes.get() > maxBytes) {
+      try {
+        trim();
+      } catch (IOException ex) {
+        LOG.warn("failed to trim cache directory {}", directory, ex);
+      }
+    }
+  }
+
+  private boolean write(String archiveKey, PackEntry e, ByteBuffer data) {
+    String key = entryKey(archiveKey, e);
+    Path path = path(key);
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer header = ByteBuffer.allocate(12 + k.length).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(k.length).put(k).putInt(data.remaining()).flip();
+
+    Path temp = null;
+    try {
+      temp = Files.createTempFile(directory, null, TEMP_SUFFIX);
+      try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ByteBuffer d = data.duplicate();
+        while (header.hasRemaining() || d.hasRemaining()) {
+          ch.write(new ByteBuffer[] {header, d});
+        }
+      }
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      temp = null;
+    } catch (IOException ex) {
+      LOG.warn("failed to write cache file {}", path, ex);
+      return false;
+    } finally {
+      if (temp != null) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException ex) {
+          // 古い一時ファイルはtrimで削除される
+        }
+      }
+    }
+
+    approxBytes.addAndGet(header.capacity() + e.getSize());
+    return true;
+  }
+
+  /**
+   * キャッシュの合計サイズが上限を超えている場合に、最後に使用された日時が古いキャッシュ・ファイルから削除します。
+   *
+   * 他のプロセスが書き込んだファイルも対象になります。
+   *
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public void trim() throws IOException {
+    // ディレクトリの走査中に仮想スレッドのキャリアを固定しないように、モニターではなくロックを使う
+    trimLock.lock();
+    try {
+      PackEvents.Cache event = new PackEvents.Cache();
+      event.begin();
+      long evicted = 0;
+      List<Path> files = new ArrayList<>();
+      List<BasicFileAttributes> attrs = new ArrayList<>();
+      long now = System.currentTimeMillis();
+      long total = 0;
+      try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+        for (Path p : ds) {
+          String name = p.getFileName().toString();
+          BasicFileAttributes a;
+          try {
+            a = Files.readAttributes(p, BasicFileAttributes.class);
+          } catch (NoSuchFileException ex) {
+            continue;
+          }
+          if (name.endsWith(TEMP_SUFFIX)) {
+            if (now - a.lastModifiedTime().toMillis() > STALE_TEMP_MILLIS) {
+              Files.deleteIfExists(p);
+            }
+          } else if (name.endsWith(SUFFIX)) {
+            files.add(p);
+            attrs.add(a);
+            total += a.size();
+          }
+        }
+      }
+
+      if (total > maxBytes) {
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+          order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> attrs.get(i).lastModifiedTime()));
+        for (int i = 0; i < order.length && total > maxBytes; i++) {
+          try {
+            Files.deleteIfExists(files.get(order[i]));
+            total -= attrs.get(order[i]).size();
+            evicted += attrs.get(order[i]).size();
+          } catch (IOException ex) {
+            // マップされているファイルを削除できない環境では次回に回す
+            LOG.debug("failed to evict {}", files.get(order[i]), ex);
+          }
+        }
+      }
+      approxBytes.set(total);
+      event.complete(directory.toString(), "trim", null, false, evicted);
+    } finally {
+      trimLock.unlock();
+    }
+  }
+
+  /**
+   * キャッシュの現在の合計サイズの概算を返します。
+   *
+   * @return キャッシュの合計サイズ(バイト)
+   */
+  public long size() {
+    return approxBytes.get();
+  }
+
+  private String entryKey(String archiveKey, PackEntry e) {
+    return archiveKey + "|" + e.getOffset() + "|" + e.getCompressedSize();
+  }
+
+  private Path path(String key) {
+    try {
+      byte[] h = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(h.length * 2 + SUFFIX.length());
+      for (byte b : h) {
+        sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return directory.resolve(sb.append(SUFFIX).toString());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
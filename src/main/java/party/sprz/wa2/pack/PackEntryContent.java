@@ -0,0 +1,45 @@
+package party.sprz.wa2.pack;
+
+import java.util.Objects;
+
+/**
+ * このクラスは、Packファイル・エントリと、その圧縮解除された内容の組を表すために使用されます。
+ *
+ * @author Nan
+ *
+ */
+public class PackEntryContent {
+  private final PackEntry entry;
+  private final byte[] data;
+
+  /**
+   * 新しいPackエントリの内容を作成します。
+   *
+   * @param entry Packファイル・エントリ
+   * @param data エントリの圧縮解除された内容
+   */
+  public PackEntryContent(PackEntry entry, byte[] data) {
+    this.entry = Objects.requireNonNull(entry);
+    this.data = Objects.requireNonNull(data);
+  }
+
+  /**
+   * Packファイル・エントリを返します。
+   *
+   * @return Packファイル・エントリ
+   */
+  public PackEntry getEntry() {
+    return entry;
+  }
+
+  /**
+   * エントリの圧縮解除された内容を返します。
+   *
+   * 返される配列はコピーされません。
+   *
+   * @return エントリの圧縮解除された内容
+   */
+  public byte[] getData() {
+    return data;
+  }
+}
@@ -0,0 +1,182 @@
+package party.sprz.wa2.pack;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * このクラスは、Java Flight Recorderに記録するイベントを定義します。
+ *
+ * 各イベントは記録が無効な場合や、しきい値より短い場合にはフィールドを設定せずに破棄されます。しきい値は.jfcファイルや記録の設定で変更できます。
+ *
+ * <pre>
+ * recording.enable("party.sprz.wa2.pack.Decompress").withThreshold(Duration.ZERO);
+ * </pre>
+ *
+ * @author Nan
+ *
+ */
+final class PackEvents {
+  private PackEvents() {}
+
+  /**
+   * Packファイルを開いたときに記録されるイベントです。
+   */
+  @Name("party.sprz.wa2.pack.ArchiveOpen")
+  @Label("Pack Archive Open")
+  @Category({"WA2", "Pack"})
+  @Description("Opening a PAK file and reading its entry table")
+  @Threshold("0 ms")
+  static final class ArchiveOpen extends Event {
+    @Label("Path")
+    String path;
+
+    @Label("Entry Count")
+    int entryCount;
+
+    @Label("Preloaded")
+    @Description("Whether the whole file was read into memory")
+    boolean preloaded;
+
+    void complete(String path, int entryCount, boolean preloaded) {
+      end();
+      if (shouldCommit()) {
+        this.path = path;
+        this.entryCount = entryCount;
+        this.preloaded = preloaded;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * エントリの入力ストリームを作成したときに記録されるイベントです。
+   */
+  @Name("party.sprz.wa2.pack.StreamOpen")
+  @Label("Pack Entry Stream Open")
+  @Category({"WA2", "Pack"})
+  @Description("Creating an input stream for a PAK entry")
+  @Threshold("1 ms")
+  static final class StreamOpen extends Event {
+    @Label("Archive")
+    String archive;
+
+    @Label("Entry")
+    String entry;
+
+    @Label("Method")
+    int method;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    @Label("Source")
+    @Description("prefetch, disk-cache, lzss or stored")
+    String source;
+
+    void complete(String archive, PackEntry e, String source) {
+      end();
+      if (shouldCommit()) {
+        this.archive = archive;
+        this.entry = e.getName();
+        this.method = e.getMethod();
+        this.size = e.getSize();
+        this.source = source;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * LZSS圧縮されたエントリの圧縮解除が終了したときに記録されるイベントです。
+   *
+   * 入力ストリームで圧縮解除した場合、イベントの期間はストリームを開いてから閉じるまでで、圧縮解除自体にかかった時間はdecodeTimeに記録されます。
+   */
+  @Name("party.sprz.wa2.pack.Decompress")
+  @Label("Pack LZSS Decompress")
+  @Category({"WA2", "Pack"})
+  @Description("Decompressing an LZSS-compressed PAK entry")
+  @Threshold("10 ms")
+  static final class Decompress extends Event {
+    @Label("Archive")
+    String archive;
+
+    @Label("Entry")
+    String entry;
+
+    @Label("Compressed Bytes")
+    @DataAmount
+    long compressedBytes;
+
+    @Label("Original Bytes")
+    @DataAmount
+    long originalBytes;
+
+    @Label("Decode Time")
+    @Timespan
+    long decodeTime;
+
+    @Label("Mode")
+    @Description("read, pipelined, batch or stream")
+    String mode;
+
+    void complete(String archive, PackEntry e, long compressedBytes, long originalBytes,
+        long decodeTime, String mode) {
+      end();
+      if (shouldCommit()) {
+        this.archive = archive;
+        this.entry = e.getName();
+        this.compressedBytes = compressedBytes;
+        this.originalBytes = originalBytes;
+        this.decodeTime = decodeTime;
+        this.mode = mode;
+        commit();
+      }
+    }
+  }
+
+  /**
+   * ディスク上のエントリ・キャッシュを操作したときに記録されるイベントです。
+   */
+  @Name("party.sprz.wa2.pack.Cache")
+  @Label("Pack Entry Cache")
+  @Category({"WA2", "Pack"})
+  @Description("Reading, writing or trimming the on-disk entry cache")
+  @Threshold("1 ms")
+  static final class Cache extends Event {
+    @Label("Directory")
+    String directory;
+
+    @Label("Operation")
+    @Description("get, put or trim")
+    String operation;
+
+    @Label("Entry")
+    String entry;
+
+    @Label("Hit")
+    boolean hit;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    void complete(String directory, String operation, PackEntry e, boolean hit, long bytes) {
+      end();
+      if (shouldCommit()) {
+        this.directory = directory;
+        this.operation = operation;
+        this.entry = e == null ? null : e.getName();
+        this.hit = hit;
+        this.bytes = bytes;
+        commit();
+      }
+    }
+  }
+}
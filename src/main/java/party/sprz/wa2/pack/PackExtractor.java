@@ -0,0 +1,279 @@
+package party.sprz.wa2.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * このクラスは、Packファイルのエントリをディレクトリに展開し、前回の展開から変わったエントリだけを書き直します。
+ *
+ * 展開先のディレクトリには、エントリごとに名前、オフセット、圧縮時のサイズ、圧縮されたデータのハッシュを記録したマニフェストが保存されます。
+ * 次回の展開では、圧縮時のサイズとハッシュが一致し、出力ファイルが同じサイズで存在するエントリは圧縮解除も書込みも行いません。Packファイルのサイズと更新日時が
+ * 前回と同じ場合は、ハッシュの計算も省略します。Packファイルからなくなったエントリの出力ファイルは削除されます。
+ *
+ * @author Nan
+ *
+ */
+public class PackExtractor {
+  /** 展開先のディレクトリに保存されるマニフェストのファイル名です。 */
+  public static final String MANIFEST_NAME = ".pack-manifest";
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private final Path directory;
+
+  /**
+   * 指定されたディレクトリに展開する新しいエクストラクタを作成します。
+   *
+   * @param directory 展開先のディレクトリ
+   */
+  public PackExtractor(Path directory) {
+    this.directory = Objects.requireNonNull(directory);
+  }
+
+  /**
+   * Packファイルのエントリを展開します。変更のないエントリは書き直しません。
+   *
+   * 変更されたエントリは複数のスレッドで並列に圧縮解除して書き込まれます。
+   *
+   * @param pack Packファイル
+   * @return 展開の結果
+   * @throws PackException Pack形式エラーが発生した場合、またはエントリの名前が展開先の外を指す場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public Result extract(PackFile pack) throws IOException {
+    Files.createDirectories(directory);
+    Path manifestPath = directory.resolve(MANIFEST_NAME);
+    String stamp = stamp(new File(pack.getName()));
+    Map<String, ManifestRecord> old = new HashMap<>();
+    String oldStamp = readManifest(manifestPath, old);
+    boolean sameArchive = stamp.equals(oldStamp);
+
+    Map<String, PackEntry> entries = new LinkedHashMap<>();
+    pack.stream().forEach(e -> entries.putIfAbsent(e.getName(), e));
+    for (String name : entries.keySet()) {
+      resolve(name);
+    }
+
+    Map<String, ManifestRecord> records = new LinkedHashMap<>();
+    AtomicInteger extracted = new AtomicInteger();
+    try {
+      List<PackEntry> list = new ArrayList<>(entries.values());
+      ManifestRecord[] result = new ManifestRecord[list.size()];
+      IntStream.range(0, list.size()).parallel().forEach(i -> {
+        try {
+          PackEntry e = list.get(i);
+          ManifestRecord prev = old.get(e.getName());
+          Path out = resolve(e.getName());
+          // 同じPackファイルで記録が一致する場合は、ハッシュを計算せずに前回の記録を使う
+          ManifestRecord r =
+              sameArchive && prev != null && prev.matches(e) ? prev : record(pack, e);
+          // オフセットだけが変わったエントリは、内容が同じなので書き直さない
+          if (prev == null || !r.hasSameData(prev) || !isExtracted(out, e.getSize())) {
+            write(out, pack, e);
+            extracted.incrementAndGet();
+          }
+          result[i] = r;
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      });
+      for (ManifestRecord r : result) {
+        records.put(r.name, r);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    int deleted = 0;
+    for (String name : old.keySet()) {
+      if (!records.containsKey(name) && Files.deleteIfExists(resolve(name))) {
+        deleted++;
+      }
+    }
+    if (!sameArchive || extracted.get() > 0 || deleted > 0) {
+      writeManifest(manifestPath, stamp, records.values());
+    }
+    return new Result(records.size(), extracted.get(), deleted);
+  }
+
+  private Path resolve(String name) throws PackException {
+    Path p = directory.resolve(name).normalize();
+    if (!p.startsWith(directory.normalize()) || p.equals(directory.normalize())
+        || name.equals(MANIFEST_NAME)) {
+      throw new PackException("Invalid entry name: " + name);
+    }
+    return p;
+  }
+
+  private static boolean isExtracted(Path out, long size) {
+    try {
+      return Files.size(out) == size;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // エントリ全体をヒープに圧縮解除せず、ストリームから一時ファイルに書き込んでから置き換える
+  private static void write(Path out, PackFile pack, PackEntry e) throws IOException {
+    Files.createDirectories(out.getParent());
+    Path temp = Files.createTempFile(out.getParent(), out.getFileName().toString(), ".part");
+    try {
+      try (InputStream in = pack.createInputStream(e)) {
+        Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+      }
+      Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static String stamp(File file) throws IOException {
+    BasicFileAttributes a = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    return a.size() + "\t" + a.lastModifiedTime().toMillis();
+  }
+
+  private static ManifestRecord record(PackFile pack, PackEntry e) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+      pack.digest(e, md);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : md.digest()) {
+        sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return new ManifestRecord(e.getName(), e.getOffset(), e.getCompressedSize(), sb.toString());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // 1行目はPackファイルのサイズと更新日時、2行目以降は1エントリにつき1行をタブ区切りで書き込む
+  private static void writeManifest(Path path, String stamp, Iterable<ManifestRecord> records)
+      throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add("#" + stamp);
+    for (ManifestRecord r : records) {
+      lines.add(r.name + "\t" + r.offset + "\t" + r.compressedSize + "\t" + r.hash);
+    }
+    Path temp = Files.createTempFile(path.getParent(), MANIFEST_NAME, ".part");
+    try {
+      Files.write(temp, lines, StandardCharsets.UTF_8);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  // 読み込めないマニフェストは存在しないものとして扱い、すべてのエントリを展開し直す
+  private static String readManifest(Path path, Map<String, ManifestRecord> records)
+      throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    }
+    List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || !lines.get(0).startsWith("#")) {
+      return null;
+    }
+    for (String line : lines.subList(1, lines.size())) {
+      String[] f = line.split("\t");
+      if (f.length != 4) {
+        records.clear();
+        return null;
+      }
+      try {
+        records.put(f[0],
+            new ManifestRecord(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), f[3]));
+      } catch (NumberFormatException e) {
+        records.clear();
+        return null;
+      }
+    }
+    return lines.get(0).substring(1);
+  }
+
+  private static class ManifestRecord {
+    final String name;
+    final long offset;
+    final long compressedSize;
+    final String hash;
+
+    ManifestRecord(String name, long offset, long compressedSize, String hash) {
+      this.name = name;
+      this.offset = offset;
+      this.compressedSize = compressedSize;
+      this.hash = hash;
+    }
+
+    boolean matches(PackEntry e) {
+      return offset == e.getOffset() && compressedSize == e.getCompressedSize();
+    }
+
+    boolean hasSameData(ManifestRecord r) {
+      return compressedSize == r.compressedSize && hash.equals(r.hash);
+    }
+  }
+
+  /**
+   * このクラスは、展開の結果を表します。
+   */
+  public static class Result {
+    private final int entries;
+    private final int extracted;
+    private final int deleted;
+
+    Result(int entries, int extracted, int deleted) {
+      this.entries = entries;
+      this.extracted = extracted;
+      this.deleted = deleted;
+    }
+
+    /**
+     * Packファイル中のエントリの数を返します。
+     *
+     * @return エントリの数
+     */
+    public int getEntries() {
+      return entries;
+    }
+
+    /**
+     * 圧縮解除して書き込んだエントリの数を返します。
+     *
+     * @return 書き込んだエントリの数
+     */
+    public int getExtracted() {
+      return extracted;
+    }
+
+    /**
+     * Packファイルからなくなったために削除した出力ファイルの数を返します。
+     *
+     * @return 削除した出力ファイルの数
+     */
+    public int getDeleted() {
+      return deleted;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("entries=%d, extracted=%d, skipped=%d, deleted=%d", entries,
+          extracted, entries - extracted, deleted);
+    }
+  }
+}
@@ -1,22 +1,42 @@
 package party.sprz.wa2.pack;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Spliterator;
-import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -25,18 +45,49 @@ import java.util.stream.StreamSupport;
  *
  * 現在はKCAP形式のデータのみをサポートしています。
  *
+ * 複数のエントリが同じデータ領域を指している場合、先読みの結果、ディスク上のキャッシュ及びreadAllの圧縮解除はそれらのエントリで共有されます。
+ *
+ * 読込み中のスレッドが割り込まれた場合、その読込みはClosedByInterruptExceptionで失敗しますが、Packファイルは閉じられず、
+ * 他のスレッドや以降の読込みは引き続き行えます。
+ *
+ * @see PackBuilder
  * @author Nan
  *
  */
 public class PackFile implements Closeable, PackConstants {
+  // 1回のmapで割り当てる領域の最大サイズ。これを超える圧縮されていないエントリは、複数の領域に分割してマップする
+  private static final long MAX_REGION_SIZE = 1L << 30;
+  // readAllでまとめて読み込む際に、間に挟んでもよい未使用領域の最大サイズと、1回の読込みの最大サイズ
+  private static final long MAX_COALESCE_GAP = 64 * 1024;
+  private static final long MAX_COALESCE_SIZE = 16 * 1024 * 1024;
+
   private final File file;
   private final int total;
+  private final PackMetrics metrics;
+  // マップした領域とreadAllの読込みバッファの予算。作成時のデフォルトを使い続ける
+  private final PackMemoryBudget budget = PackMemoryBudget.getDefault();
   private volatile boolean closed = false;
 
-  private PackEntry[] entryCache;
-  private Map<String, InputStream> streams;
+  // 作成時に読み込んだエントリ・テーブル。以降は変更しないため、ロックなしで参照できる
+  private final PackEntry[] entryCache;
+  // 他のエントリと同じデータ領域を指すエントリから、そのデータ領域を最初に指すエントリへのマップ
+  private final Map<PackEntry, PackEntry> aliases;
+  // エントリ・テーブルを名前の順序で並べた索引
+  private final PackNameIndex<PackEntry> nameIndex;
+  private final Map<String, InputStream> streams = new ConcurrentHashMap<>();
+  // closeを1回だけ実行し、チャネルの開き直しと排他するためのロック
+  private final ReentrantLock closeLock = new ReentrantLock();
 
-  private RandomAccessFile raf;
+  // データ領域のマップと読込みに使うチャネル。FileChannelは操作中のスレッドが割り込まれると閉じられるため、
+  // そのときはcloseLockを取得して開き直し、他のスレッドの読込みに影響しないようにする
+  private final AtomicReference<FileChannel> channel = new AtomicReference<>();
+  private final MappedResource resource;
+  // ファイル全体を読み込んだ読込み専用のダイレクト・バッファ。マップして読み込む場合はnull
+  private final ByteBuffer preloaded;
+  private volatile PackPrefetcher prefetcher;
+  // 圧縮解除した内容を保存するディスク上のキャッシュと、このPackファイルのキー
+  private volatile PackEntryCache persistentCache;
+  private volatile String persistentCacheKey;
 
   /**
    * Packファイルを読込み用に開きます。
@@ -55,20 +106,111 @@ public class PackFile implements Closeable, PackConstants {
    * @throws IOException 入出力エラーが発生した場合
    */
   public PackFile(File file) throws IOException {
-    this.raf = new RandomAccessFile(file, "r");
+    this(file, PackMetrics.NONE);
+  }
 
-    PackHeaderReader peReader = new PackHeaderReader() {
-      @Override
-      protected int read(byte[] b) throws IOException {
-        return raf.read(b);
-      }
-    };
+  /**
+   * Fileオブジェクトに指定されたPackファイルを、計測値をPackMetricsに通知しながら読み込むために開きます。
+   *
+   * @param file 読取りのために開くPackファイル
+   * @param metrics 計測値の通知先。計測しない場合はPackMetrics.NONE
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public PackFile(File file, PackMetrics metrics) throws IOException {
+    this(file, metrics, 0);
+  }
 
-    this.total = peReader.readHeader();
+  /**
+   * Fileオブジェクトに指定されたPackファイルを、読込み用に開きます。ファイルのサイズがpreloadThreshold以下の場合は、ファイル全体をメモリに読み込みます。
+   *
+   * ファイル全体を読み込む場合は、1回の大きな順次読込みでヒープ外のバッファに読み込み、以降のエントリの読込みはすべてそのバッファから行います。
+   * ファイルのオープンやマップ、ページ・フォールトのコストが大きいネットワーク・ファイル・システムで有効です。
+   * ファイルのサイズがpreloadThresholdを超える場合は、通常どおりエントリごとにマップして読み込みます。
+   *
+   * @param file 読取りのために開くPackファイル
+   * @param metrics 計測値の通知先。計測しない場合はPackMetrics.NONE
+   * @param preloadThreshold ファイル全体を読み込むファイルの最大サイズ(バイト)。0の場合は読み込みません
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public PackFile(File file, PackMetrics metrics, long preloadThreshold) throws IOException {
+    PackEvents.ArchiveOpen event = new PackEvents.ArchiveOpen();
+    event.begin();
+    long start = System.nanoTime();
+    this.metrics = Objects.requireNonNull(metrics);
     this.file = file;
+    channel.set(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    long preloadedBytes = 0;
+    try {
+      long length = channel.get().size();
+      // 予算が足りない場合は、ファイル全体を読み込まずにエントリごとにマップする
+      if (0 < preloadThreshold && length <= Math.min(preloadThreshold, Integer.MAX_VALUE)
+          && budget.tryAcquireBuffer(length)) {
+        preloadedBytes = length;
+        this.preloaded = preload((int) length);
+      } else {
+        this.preloaded = null;
+      }
+      this.entryCache = readEntries();
+      this.total = entryCache.length;
+      this.aliases = findAliases(entryCache);
+      this.nameIndex = new PackNameIndex<>(Arrays.asList(entryCache), PackEntry::getName);
+    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+      channel.get().close();
+      budget.releaseBuffer(preloadedBytes);
+      throw e;
+    }
 
-    this.entryCache = new PackEntry[total];
-    this.streams = new HashMap<>();
+    AtomicReference<FileChannel> c = channel;
+    PackMemoryBudget b = budget;
+    long bufferBytes = preloadedBytes;
+    this.resource = new MappedResource(this, "PackFile " + getName(), null, () -> {
+      b.releaseBuffer(bufferBytes);
+      try {
+        c.get().close();
+      } catch (IOException e) {
+        // GC時の解放では通知先がないため無視する
+      }
+    });
+    metrics.archiveOpened(getName(), total, System.nanoTime() - start);
+    event.complete(getName(), total, preloaded != null);
+  }
+
+  private ByteBuffer preload(int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocateDirect(length);
+    FileChannel ch = channel.get();
+    while (buf.hasRemaining()) {
+      if (ch.read(buf, buf.position()) == -1) {
+        throw new PackException("PackFile was truncated while loading");
+      }
+    }
+    buf.flip();
+    return buf.asReadOnlyBuffer();
+  }
+
+  private PackEntry[] readEntries() throws IOException {
+    PackHeaderReader peReader;
+    if (preloaded != null) {
+      ByteBuffer header = preloaded.duplicate();
+      peReader = new PackHeaderReader() {
+        @Override
+        protected int read(byte[] b) throws IOException {
+          int n = Math.min(b.length, header.remaining());
+          header.get(b, 0, n);
+          return n;
+        }
+      };
+    } else {
+      peReader = new PackHeaderReader() {
+        @Override
+        protected int read(byte[] b) throws IOException {
+          return channel.get().read(ByteBuffer.wrap(b));
+        }
+      };
+    }
+
+    int total = peReader.readHeader();
+
+    PackEntry[] entryCache = new PackEntry[total];
     for (int i = 0; i < total; i++) {
       entryCache[i] = peReader.readEntryHeader();
     }
@@ -76,13 +218,31 @@ public class PackFile implements Closeable, PackConstants {
     byte[] b = new byte[4];
     for (int i = 0; i < total; i++) {
       if (entryCache[i].getMethod() == 1) {
-        raf.seek(entryCache[i].getOffset() + SIZE_OFF);
-        raf.read(b);
-        entryCache[i].setSize(get32(b, 0));
+        readAt(entryCache[i].getOffset() + SIZE_OFF, b);
+        entryCache[i].setSize(Integer.toUnsignedLong(get32(b, 0)));
       } else {
         entryCache[i].setSize(entryCache[i].getCompressedSize());
       }
     }
+    return entryCache;
+  }
+
+  private static Map<PackEntry, PackEntry> findAliases(PackEntry[] table) {
+    Map<PackEntry, PackEntry> aliases = new IdentityHashMap<>();
+    Map<Long, PackEntry> first = new HashMap<>();
+    for (PackEntry e : table) {
+      PackEntry f = first.putIfAbsent(e.getOffset(), e);
+      if (f != null && f.getMethod() == e.getMethod()
+          && f.getCompressedSize() == e.getCompressedSize()) {
+        aliases.put(e, f);
+      }
+    }
+    return aliases;
+  }
+
+  // 同じデータ領域を指すエントリのうち、最初のものを返す
+  private PackEntry canonical(PackEntry e) {
+    return aliases.isEmpty() ? e : aliases.getOrDefault(e, e);
   }
 
   /**
@@ -94,25 +254,21 @@ public class PackFile implements Closeable, PackConstants {
    */
   public PackEntry getEntry(String name) {
     Objects.requireNonNull(name);
-    synchronized (this) {
-      ensureOpen();
-      int entryIndex = indexOf(name);
-      if (entryIndex != -1) {
-        PackEntry e = entryCache[entryIndex];
-        return e;
-      }
-    }
-    return null;
+    ensureOpen();
+    return nameIndex.get(name);
   }
 
-  private int indexOf(String name) {
-    for (int i = 0; i < total; i++) {
-      PackEntry e = entryCache[i];
-      if (e.getName().equals(name)) {
-        return i;
-      }
-    }
-    return -1;
+  /**
+   * エントリを名前の順序で並べた索引を返します。前方一致、範囲及びglobパターンでエントリを選ぶ場合に使用します。
+   *
+   * 同じ名前のエントリが複数ある場合は、エントリ・テーブルでの順序を保ちます。
+   *
+   * @return エントリの名前の索引
+   * @throws IllegalStateException - Packファイルが閉じられている場合
+   */
+  public PackNameIndex<PackEntry> getNameIndex() {
+    ensureOpen();
+    return nameIndex;
   }
 
   private void ensureOpen() {
@@ -138,16 +294,27 @@ public class PackFile implements Closeable, PackConstants {
    */
   @Override
   public void close() throws IOException {
-    if (closed) {
-      return;
-    }
-    entryCache = null;
-    for (InputStream in : streams.values()) {
-      if (in != null) {
-        in.close();
+    closeLock.lock();
+    try {
+      if (closed) {
+        return;
       }
+      closed = true;
+      PackPrefetcher p = prefetcher;
+      if (p != null) {
+        p.close();
+      }
+      try {
+        for (InputStream in : streams.values()) {
+          in.close();
+        }
+        channel.get().close();
+      } finally {
+        resource.close();
+      }
+    } finally {
+      closeLock.unlock();
     }
-    closed = true;
   }
 
   /**
@@ -173,14 +340,47 @@ public class PackFile implements Closeable, PackConstants {
   /**
    * Packファイルのエントリに対する順序付けされたStreamを返します。
    *
+   * 返されるStreamはエントリ・テーブルを均等に分割できるため、parallelメソッドで並列に処理できます。
+   *
    * @return このPackファイル内のエントリの順序付けされたStream
    * @throws IllegalStateException - Packファイルが閉じられている場合
    */
   public Stream<? extends PackEntry> stream() {
-    int characteristics =
-        Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.IMMUTABLE | Spliterator.NONNULL;
-    return StreamSupport
-        .stream(Spliterators.spliterator(new PackEntryIterator(), size(), characteristics), false);
+    ensureOpen();
+    return StreamSupport.stream(new PackEntrySpliterator(entryCache, null, 0, total), false);
+  }
+
+  /**
+   * Packファイルのエントリと、その圧縮解除された内容の組に対する順序付けされた並列Streamを返します。
+   *
+   * エントリ・テーブルは圧縮時のサイズの合計が均等になるように分割されるため、大きなエントリは複数のスレッドに分散されます。
+   * 入出力エラーが発生した場合は、StreamからUncheckedIOExceptionがスローされます。
+   *
+   * @return このPackファイル内のエントリと内容の組の順序付けされた並列Stream
+   * @throws IllegalStateException - Packファイルが閉じられている場合
+   */
+  public Stream<PackEntryContent> contents() {
+    ensureOpen();
+    PackEntry[] entries = entryCache;
+    long[] weights = new long[entries.length + 1];
+    for (int i = 0; i < entries.length; i++) {
+      weights[i + 1] = weights[i] + entries[i].getCompressedSize() + 1;
+    }
+    return StreamSupport.stream(new PackEntrySpliterator(entries, weights, 0, total), true)
+        .map(this::readContent);
+  }
+
+  private PackEntryContent readContent(PackEntry entry) {
+    if (entry.getSize() > Integer.MAX_VALUE) {
+      throw new UncheckedIOException(new PackException("Entry too large: " + entry.getName()));
+    }
+    byte[] b = new byte[(int) entry.getSize()];
+    try {
+      read(entry, ByteBuffer.wrap(b));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new PackEntryContent(entry, b);
   }
 
   /**
@@ -196,41 +396,501 @@ public class PackFile implements Closeable, PackConstants {
    */
   public InputStream getInputStream(PackEntry entry) throws IOException {
     Objects.requireNonNull(entry);
-    if (streams.get(entry.getName()) == null) {
-      InputStream in = createInputStream(entry);
-      if (in != null) {
-        streams.put(entry.getName(), createInputStream(entry));
-      }
+    InputStream in = streams.get(entry.getName());
+    if (in != null) {
+      metrics.cacheHit(entry);
+      metrics.entryAccessed(entry);
+      return in;
+    }
+    metrics.cacheMiss(entry);
+    in = createInputStream(entry);
+    // 同時に作成された場合は、先に登録されたストリームを使う
+    InputStream prev = streams.putIfAbsent(entry.getName(), in);
+    if (prev != null) {
+      in.close();
+      return prev;
     }
-    return streams.get(entry.getName());
+    return in;
   }
 
   public InputStream createInputStream(PackEntry entry) throws IOException {
+    return createInputStream(entry, 0);
+  }
+
+  /**
+   * 指定されたPackファイル・エントリの内容を、指定された位置から読み込む新しい入力ストリームを返します。
+   *
+   * 圧縮されていないエントリは、指定された位置以降のデータ領域だけをマップします。LZSS圧縮されたエントリは先頭から圧縮解除して
+   * 指定された位置までを読み捨てますが、先読みされている場合やディスク上のキャッシュにある場合は圧縮解除しません。
+   *
+   * @param entry Packファイル・エントリ
+   * @param position 読込みを開始する位置。エントリのサイズ以上の場合、ストリームは何も返さない
+   * @return 指定されたPackファイル・エントリの内容を指定された位置から読み込む入力ストリーム
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalArgumentException positionが負の場合
+   * @throws IllegalStateException Packファイルが閉じられている場合
+   */
+  public InputStream createInputStream(PackEntry entry, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("negative position");
+    }
+    PackEvents.StreamOpen event = new PackEvents.StreamOpen();
+    event.begin();
     InputStream in = null;
-    synchronized (this) {
-      ensureOpen();
-      if (entry.getMethod() == 1) {
-        in = new PackFileLZSSInputStream(file, entry);
-      } else {
-        in = new PackFileInputStream(file, entry);
+    String source;
+    ensureOpen();
+    metrics.entryAccessed(entry);
+    byte[] prefetched = prefetched(entry);
+    if (prefetched != null) {
+      in = new ByteArrayInputStream(prefetched);
+      source = "prefetch";
+    } else if (entry.getMethod() == 1 && isCacheable(entry)) {
+      in = cachedInputStream(entry);
+      source = "disk-cache";
+    } else if (entry.getMethod() == 1) {
+      in = new PackFileLZSSInputStream(entry);
+      source = "lzss";
+    } else {
+      in = new PackFileInputStream(entry, position);
+      source = "stored";
+    }
+    event.complete(getName(), entry, source);
+    if (0 < position && !(in instanceof PackFileInputStream)) {
+      try {
+        skipFully(in, position);
+      } catch (IOException | RuntimeException e) {
+        in.close();
+        throw e;
       }
     }
     return in;
   }
 
+  // エントリの終わりに達した場合は、それ以上読み捨てない
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (0 < n) {
+      long k = in.skip(n);
+      if (k <= 0) {
+        if (in.read() == -1) {
+          return;
+        }
+        k = 1;
+      }
+      n -= k;
+    }
+  }
+
   /**
-   * このPackFileオブジェクトによって保持されているシステム・リソースを、それへの参照がなくなったときに解放されるようにします。
+   * 指定されたPackファイル・エントリの内容を、バイトバッファに直接読み込みます。
    *
-   * GCでこのメソッドが呼び出される時間が決まっていないため、このPackFileへのアクセスが完了した直後に、アプリケーションでcloseメソッドを呼び出すことを強くお薦めします。
-   * これにより、時間が定まらないままシステム・リソースが保持されるのを防止できます。
+   * マップされたエントリ・データからdstへ1回の走査で書き込むため、ダイレクト・バッファを指定するとヒープ上の中間バッファを経由しません。
+   * dstの残り領域がエントリのサイズより小さい場合は、残り領域の分だけを読み込みます。
    *
+   * @param entry Packファイル・エントリ
+   * @param dst エントリの内容の書込み先のバッファ
+   * @return 読み込んだバイト数
+   * @throws PackException Pack形式エラーが発生した場合
    * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalStateException Packファイルが閉じられている場合
+   */
+  public int read(PackEntry entry, ByteBuffer dst) throws IOException {
+    Objects.requireNonNull(entry);
+    Objects.requireNonNull(dst);
+    ensureOpen();
+    metrics.entryAccessed(entry);
+    byte[] prefetched = prefetched(entry);
+    if (prefetched != null) {
+      int n = Math.min(prefetched.length, dst.remaining());
+      dst.put(prefetched, 0, n);
+      return n;
+    }
+    if (entry.getMethod() == 1 && isCacheable(entry)) {
+      return readCached(entry, dst);
+    }
+    return readEntry(entry, dst);
+  }
+
+  private int readEntry(PackEntry entry, ByteBuffer dst) throws IOException {
+    int start = dst.position();
+    if (entry.getSize() <= 0 || !dst.hasRemaining()) {
+      return 0;
+    }
+
+    if (entry.getMethod() == 1) {
+      ByteBuffer[] regions = mapCompressed(entry);
+      try {
+        if (LZSSPipelinedDecoder.isWorthwhile(entry.getSize()) && dst.hasArray()
+            && entry.getSize() <= dst.remaining()) {
+          // 大きなエントリ全体を配列に読み込む場合は、解析と複写を2つのスレッドで並行して行う
+          LZSSPipelinedDecoder decoder = new LZSSPipelinedDecoder(regions[0]);
+          PackEvents.Decompress event = new PackEvents.Decompress();
+          event.begin();
+          long t = System.nanoTime();
+          int n = decoder.decode(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+          long nanos = System.nanoTime() - t;
+          metrics.decompressed(decoder.getTotalIn(), n, nanos);
+          event.complete(getName(), entry, decoder.getTotalIn(), n, nanos, "pipelined");
+          dst.position(dst.position() + n);
+        } else {
+          try (LZSSDecompresser decomp = new LZSSDecompresser(regions[0])) {
+            PackEvents.Decompress event = new PackEvents.Decompress();
+            event.begin();
+            long t = System.nanoTime();
+            while (dst.hasRemaining() && decomp.decompress(dst) != -1) {
+            }
+            long nanos = System.nanoTime() - t;
+            metrics.decompressed(decomp.getTotalIn(), decomp.getTotalOut(), nanos);
+            event.complete(getName(), entry, decomp.getTotalIn(), decomp.getTotalOut(), nanos,
+                "read");
+            // 出力先を満たして終わった場合も、エントリの最後まで圧縮解除したときは、元のサイズを超える最後の参照を検出する
+            if (dst.hasRemaining() || decomp.getTotalOut() == decomp.getSize()) {
+              decomp.checkIntegrity();
+            }
+          }
+        }
+      } finally {
+        release(regions);
+      }
+    } else {
+      long size = Math.min(entry.getSize(), dst.remaining());
+      ByteBuffer[] regions = mapRegions(entry.getOffset(), size);
+      try {
+        for (ByteBuffer src : regions) {
+          dst.put(src);
+        }
+      } finally {
+        release(regions);
+      }
+    }
+    return dst.position() - start;
+  }
+
+  /**
+   * エントリへのアクセスを学習して後続のエントリを先読みするプリフェッチャを設定します。
+   *
+   * 設定したプリフェッチャは、このPackファイルを閉じると停止します。
    *
-   * @see java.lang.Object#finalize()
+   * @param prefetcher プリフェッチャ。先読みしない場合はnull
+   * @throws IllegalStateException プリフェッチャが別のPackファイルに設定されている場合
    */
-  @Override
-  protected void finalize() throws IOException {
-    close();
+  public void setPrefetcher(PackPrefetcher prefetcher) {
+    ensureOpen();
+    if (prefetcher != null) {
+      prefetcher.attach(this);
+    }
+    PackPrefetcher old = this.prefetcher;
+    this.prefetcher = prefetcher;
+    if (old != null) {
+      old.close();
+    }
+  }
+
+  /**
+   * 圧縮解除したエントリの内容を保存するディスク上のキャッシュを設定します。
+   *
+   * キャッシュを設定すると、LZSS圧縮されたエントリは圧縮解除の前にキャッシュから探され、見つからない場合は圧縮解除した内容がキャッシュに保存されます。
+   * キャッシュは複数のPackファイルやプロセスで共有できます。
+   *
+   * @param cache キャッシュ。キャッシュを使用しない場合はnull
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalStateException Packファイルが閉じられている場合
+   */
+  public void setEntryCache(PackEntryCache cache) throws IOException {
+    ensureOpen();
+    this.persistentCacheKey = cache == null ? null : cache.archiveKey(file);
+    this.persistentCache = cache;
+  }
+
+  private boolean isCacheable(PackEntry entry) {
+    PackEntryCache c = persistentCache;
+    return c != null && c.accepts(entry);
+  }
+
+  private InputStream cachedInputStream(PackEntry entry) throws IOException {
+    PackEntryCache c = persistentCache;
+    String key = persistentCacheKey;
+    MappedByteBuffer cached = c.get(key, entry);
+    if (cached != null) {
+      metrics.diskCacheHit(entry);
+      return new CachedInputStream(entry, cached);
+    }
+    metrics.diskCacheMiss(entry);
+    byte[] b = decode(entry);
+    c.put(key, entry, ByteBuffer.wrap(b));
+    return new ByteArrayInputStream(b);
+  }
+
+  private int readCached(PackEntry entry, ByteBuffer dst) throws IOException {
+    PackEntryCache c = persistentCache;
+    String key = persistentCacheKey;
+    MappedByteBuffer cached = c.get(key, entry);
+    if (cached != null) {
+      metrics.diskCacheHit(entry);
+      try {
+        int n = Math.min(cached.remaining(), dst.remaining());
+        cached.limit(cached.position() + n);
+        dst.put(cached);
+        return n;
+      } finally {
+        MappedResource.unmap(cached);
+      }
+    }
+    metrics.diskCacheMiss(entry);
+    int start = dst.position();
+    int n = readEntry(entry, dst);
+    if (n == entry.getSize()) {
+      ByteBuffer written = dst.duplicate();
+      written.position(start);
+      written.limit(start + n);
+      c.put(key, entry, written);
+    }
+    return n;
+  }
+
+  private byte[] prefetched(PackEntry entry) {
+    PackPrefetcher p = prefetcher;
+    return p == null ? null : p.accessed(canonical(entry));
+  }
+
+  // プリフェッチャから呼び出され、アクセスとして記録せずにエントリの内容を圧縮解除する
+  byte[] decode(PackEntry entry) throws IOException {
+    ensureOpenOrPackException();
+    if (entry.getSize() > Integer.MAX_VALUE) {
+      throw new PackException("Entry too large: " + entry.getName());
+    }
+    byte[] b = new byte[(int) entry.getSize()];
+    readEntry(entry, ByteBuffer.wrap(b));
+    return b;
+  }
+
+  // プリフェッチャから呼び出され、エントリのデータ領域をページ・キャッシュに読み込む
+  void load(PackEntry entry) throws IOException {
+    ensureOpenOrPackException();
+    if (preloaded != null) {
+      return;
+    }
+    ByteBuffer[] regions = mapRegions(entry.getOffset(), entry.getCompressedSize());
+    try {
+      for (ByteBuffer region : regions) {
+        ((MappedByteBuffer) region).load();
+      }
+    } finally {
+      release(regions);
+    }
+  }
+
+  // エントリの圧縮されたデータ領域を、圧縮解除せずにMessageDigestへ入力する
+  void digest(PackEntry entry, MessageDigest md) throws IOException {
+    ensureOpenOrPackException();
+    ByteBuffer[] regions = mapRegions(entry.getOffset(), entry.getCompressedSize());
+    try {
+      for (ByteBuffer region : regions) {
+        md.update(region);
+      }
+    } finally {
+      release(regions);
+    }
+  }
+
+  /**
+   * 指定された名前のエントリの内容をまとめて読み込みます。
+   *
+   * エントリをオフセット順に並べ、隣接するデータ領域を少数の大きな読込みにまとめてから、LZSS圧縮されたエントリを並列に圧縮解除します。
+   * 読込みはオフセットの昇順に行われ、読み込んだ領域から順に圧縮解除が始まります。同じデータ領域を指すエントリは1度だけ圧縮解除され、
+   * 返されるバッファは内容を保持する配列を共有します。格納されたエントリは、まとめて読み込んだバッファから個別のバッファに複写されます。
+   * 圧縮時のサイズが1回の読込みの最大サイズを超えるエントリは、まとめずにマップして個別に読み込みます。
+   *
+   * @param names エントリの名前のコレクション
+   * @return エントリの名前と、その内容を保持するバッファのマップ。見つからない名前は含まれません
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalStateException Packファイルが閉じられている場合
+   */
+  public Map<String, ByteBuffer> readAll(Collection<String> names) throws IOException {
+    Objects.requireNonNull(names);
+    List<PackEntry> entries = new ArrayList<>(names.size());
+    // まとめて読み込む範囲に収まらないエントリは、同じデータ領域を指すエントリごとに個別に読み込む
+    Map<PackEntry, List<PackEntry>> large = new LinkedHashMap<>();
+    for (String name : new LinkedHashSet<>(names)) {
+      PackEntry e = getEntry(name);
+      if (e != null) {
+        metrics.entryAccessed(e);
+        if (e.getCompressedSize() > MAX_COALESCE_SIZE) {
+          large.computeIfAbsent(canonical(e), k -> new ArrayList<>()).add(e);
+        } else {
+          entries.add(e);
+        }
+      }
+    }
+    entries.sort(Comparator.comparingLong(PackEntry::getOffset));
+
+    Map<String, ByteBuffer> result = new ConcurrentHashMap<>();
+    List<CompletableFuture<Void>> tasks = new ArrayList<>();
+    try {
+      for (Map.Entry<PackEntry, List<PackEntry>> l : large.entrySet()) {
+        tasks.add(CompletableFuture.runAsync(() -> {
+          ByteBuffer buf;
+          try {
+            buf = ByteBuffer.wrap(decode(l.getKey()));
+          } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+          }
+          for (PackEntry e : l.getValue()) {
+            result.put(e.getName(), buf.duplicate());
+          }
+        }));
+      }
+      int from = 0;
+      while (from < entries.size()) {
+        long start = entries.get(from).getOffset();
+        long end = start + entries.get(from).getCompressedSize();
+        int to = from + 1;
+        for (; to < entries.size(); to++) {
+          PackEntry e = entries.get(to);
+          long nextEnd = Math.max(end, e.getOffset() + e.getCompressedSize());
+          if (e.getOffset() - end > MAX_COALESCE_GAP || nextEnd - start > MAX_COALESCE_SIZE) {
+            break;
+          }
+          end = nextEnd;
+        }
+
+        ByteBuffer buf = readRange(start, (int) (end - start));
+        List<PackEntry> group = entries.subList(from, to);
+        tasks.add(CompletableFuture.runAsync(() -> {
+          try {
+            decodeGroup(group, buf, start, result);
+          } finally {
+            if (preloaded == null) {
+              budget.releaseBuffer(buf.capacity());
+            }
+          }
+        }));
+        from = to;
+      }
+      CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw e;
+    }
+    return result;
+  }
+
+  private void decodeGroup(List<PackEntry> group, ByteBuffer buf, long start,
+      Map<String, ByteBuffer> result) {
+    PackEntry prev = null;
+    for (PackEntry e : group) {
+      // オフセット順に並んでいるため、同じデータ領域を指すエントリは続けて現れる
+      if (prev != null && canonical(e) == canonical(prev)) {
+        result.put(e.getName(), result.get(prev.getName()).duplicate());
+        continue;
+      }
+      prev = e;
+      ByteBuffer src = buf.duplicate();
+      src.position((int) (e.getOffset() - start));
+      src.limit(src.position() + (int) e.getCompressedSize());
+      src = src.slice();
+      if (e.getMethod() != 1) {
+        // まとめて読み込んだバッファはこのあとメモリの予算に返すため、スライスのまま返さずにエントリの分だけ複写する
+        if (preloaded == null) {
+          src = ByteBuffer.allocate(src.remaining()).put(src);
+          src.flip();
+        }
+        result.put(e.getName(), src);
+        continue;
+      }
+
+      try (LZSSDecompresser decomp = new LZSSDecompresser(src)) {
+        byte[] b = new byte[decomp.getSize()];
+        PackEvents.Decompress event = new PackEvents.Decompress();
+        event.begin();
+        long t = System.nanoTime();
+        int n = 0;
+        int r;
+        while (n < b.length && (r = decomp.decompress(b, n, b.length - n)) != -1) {
+          n += r;
+        }
+        long nanos = System.nanoTime() - t;
+        metrics.decompressed(decomp.getTotalIn(), decomp.getTotalOut(), nanos);
+        event.complete(getName(), e, decomp.getTotalIn(), decomp.getTotalOut(), nanos, "batch");
+        decomp.checkIntegrity();
+        result.put(e.getName(), ByteBuffer.wrap(b));
+      } catch (PackException ex) {
+        throw new UncheckedIOException(ex);
+      } catch (IllegalArgumentException ex) {
+        throw new UncheckedIOException(new PackException(ex.getMessage() + ": " + e.getName()));
+      }
+    }
+  }
+
+  /**
+   * Packファイル内のすべてのエントリを検査し、壊れているエントリを返します。
+   *
+   * エントリのデータ領域がファイルの範囲内にあるかを確認し、LZSS圧縮されたエントリはすべて圧縮解除して整合性を検査します。検査は複数のスレッドで並列に行われます。
+   *
+   * @return 壊れているエントリと、その原因となった例外のマップ。エントリの順序で並びます。壊れているエントリがない場合は空のマップ
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalStateException Packファイルが閉じられている場合
+   */
+  public Map<PackEntry, IOException> verify() throws IOException {
+    ensureOpen();
+    long length = onChannel(FileChannel::size);
+    PackEntry[] entries = entryCache;
+    IOException[] errors = new IOException[entries.length];
+    IntStream.range(0, entries.length).parallel().forEach(i -> {
+      if (canonical(entries[i]) != entries[i]) {
+        return;
+      }
+      try {
+        verifyEntry(entries[i], length);
+      } catch (IOException | IllegalArgumentException e) {
+        errors[i] = e instanceof IOException ? (IOException) e : new PackException(e.getMessage());
+      }
+    });
+
+    Map<PackEntry, IOException> result = new LinkedHashMap<>();
+    Map<PackEntry, IOException> byEntry = new IdentityHashMap<>();
+    for (int i = 0; i < entries.length; i++) {
+      if (errors[i] != null) {
+        byEntry.put(entries[i], errors[i]);
+      }
+    }
+    // 同じデータ領域を指すエントリは1度だけ検査し、結果を共有する
+    for (PackEntry e : entries) {
+      IOException error = byEntry.get(canonical(e));
+      if (error != null) {
+        result.put(e, error);
+      }
+    }
+    return result;
+  }
+
+  private void verifyEntry(PackEntry e, long length) throws IOException {
+    if (length < e.getOffset() + e.getCompressedSize()) {
+      throw new PackException("Entry is out of range: " + e.getName());
+    }
+    if (e.getMethod() != 1) {
+      return;
+    }
+
+    byte[] b = new byte[8192];
+    ByteBuffer[] regions = mapCompressed(e);
+    try (LZSSDecompresser decomp = new LZSSDecompresser(regions[0])) {
+      while (decomp.decompress(b) != -1) {
+      }
+      decomp.checkIntegrity();
+      if (decomp.getTotalOut() != e.getSize()) {
+        throw new PackException("Data is broken (data size does'nt match)");
+      }
+    } finally {
+      release(regions);
+    }
   }
 
   /**
@@ -252,22 +912,18 @@ public class PackFile implements Closeable, PackConstants {
 
     @Override
     public boolean hasNext() {
-      synchronized (PackFile.this) {
-        ensureOpen();
-        return i < total;
-      }
+      ensureOpen();
+      return i < total;
     }
 
     @Override
     public PackEntry next() {
-      synchronized (PackFile.this) {
-        ensureOpen();
-        if (i >= total) {
-          throw new NoSuchElementException();
-        }
-        PackEntry e = entryCache[i++];
-        return e;
+      ensureOpen();
+      if (i >= total) {
+        throw new NoSuchElementException();
       }
+      PackEntry e = entryCache[i++];
+      return e;
     }
 
     @Override
@@ -281,30 +937,135 @@ public class PackFile implements Closeable, PackConstants {
     }
   }
 
+  private class PackEntrySpliterator implements Spliterator<PackEntry> {
+    private final PackEntry[] entries;
+    // 先頭からの重みの累積和。nullの場合はエントリ数で均等に分割する
+    private final long[] weights;
+    private int index;
+    private final int fence;
+
+    public PackEntrySpliterator(PackEntry[] entries, long[] weights, int index, int fence) {
+      this.entries = entries;
+      this.weights = weights;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super PackEntry> action) {
+      Objects.requireNonNull(action);
+      ensureOpen();
+      if (index < fence) {
+        action.accept(entries[index++]);
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super PackEntry> action) {
+      Objects.requireNonNull(action);
+      ensureOpen();
+      for (int i = index; i < fence; i++) {
+        action.accept(entries[i]);
+      }
+      index = fence;
+    }
+
+    @Override
+    public Spliterator<PackEntry> trySplit() {
+      int lo = index;
+      if (fence - lo < 2) {
+        return null;
+      }
+
+      int mid;
+      if (weights == null) {
+        mid = (lo + fence) >>> 1;
+      } else {
+        long half = weights[lo] + (weights[fence] - weights[lo]) / 2;
+        int i = Arrays.binarySearch(weights, lo + 1, fence, half);
+        mid = i < 0 ? -i - 1 : i;
+        if (mid >= fence) {
+          mid = fence - 1;
+        }
+      }
+      index = mid;
+      return new PackEntrySpliterator(entries, weights, lo, mid);
+    }
+
+    @Override
+    public long estimateSize() {
+      return fence - index;
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.IMMUTABLE
+          | Spliterator.NONNULL | Spliterator.SIZED | Spliterator.SUBSIZED;
+    }
+  }
+
   private class PackFileLZSSInputStream extends InputStream {
+    private final PackEntry entry;
+    // 圧縮解除の期間はストリームを開いてから閉じるまでとし、圧縮解除自体の時間は別に集計する
+    private final PackEvents.Decompress event = new PackEvents.Decompress();
+    private final boolean timed = metrics != PackMetrics.NONE || event.isEnabled();
+    private final MappedResource resource;
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean closed = false;
+    private long nanos;
     private LZSSDecompresser decomp;
 
-    public PackFileLZSSInputStream(File file, PackEntry e) throws IOException {
-      try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-        MappedByteBuffer buf =
-            raf.getChannel().map(MapMode.READ_ONLY, e.getOffset(), e.getCompressedSize());
-        decomp = new LZSSDecompresser(buf);
+    public PackFileLZSSInputStream(PackEntry e) throws IOException {
+      this.entry = e;
+      ByteBuffer[] regions = mapCompressed(e);
+      try {
+        decomp = new LZSSDecompresser(regions[0]);
+      } catch (RuntimeException ex) {
+        release(regions);
+        throw ex;
       }
+      event.begin();
+      metrics.streamOpened(e);
+      PackMetrics m = metrics;
+      PackMemoryBudget b = budget;
+      long mapped = mappedBytes(regions);
+      resource = new MappedResource(this, "Stream of " + e.getName(),
+          preloaded == null ? regions : null, () -> {
+            b.releaseMapped(mapped);
+            m.streamClosed(e);
+          });
     }
 
     @Override
     public void close() throws IOException {
-      decomp.close();
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        if (timed) {
+          metrics.decompressed(decomp.getTotalIn(), decomp.getTotalOut(), nanos);
+          event.complete(getName(), entry, decomp.getTotalIn(), decomp.getTotalOut(), nanos,
+              "stream");
+        }
+        decomp.close();
+        resource.close();
+      } finally {
+        lock.unlock();
+      }
     }
 
     @Override
     public int available() throws IOException {
-      return decomp.available();
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-      close();
+      lock.lock();
+      try {
+        return decomp.available();
+      } finally {
+        lock.unlock();
+      }
     }
 
     @Override
@@ -323,28 +1084,146 @@ public class PackFile implements Closeable, PackConstants {
 
     @Override
     public int read(byte b[], int off, int len) throws IOException {
-      return decomp.decompress(b, off, len);
+      lock.lock();
+      try {
+        int n;
+        if (timed) {
+          long t = System.nanoTime();
+          n = decomp.decompress(b, off, len);
+          nanos += System.nanoTime() - t;
+        } else {
+          n = decomp.decompress(b, off, len);
+        }
+        if (n == -1) {
+          decomp.checkIntegrity();
+        }
+        return n;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  // ディスク上のキャッシュからマップした内容を読み込む。閉じるとアンマップする
+  private class CachedInputStream extends InputStream {
+    private final MappedResource resource;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer buf;
+
+    public CachedInputStream(PackEntry e, MappedByteBuffer cached) {
+      this.buf = cached;
+      metrics.streamOpened(e);
+      PackMetrics m = metrics;
+      resource = new MappedResource(this, "Stream of " + e.getName(),
+          new ByteBuffer[] {cached}, () -> m.streamClosed(e));
+    }
+
+    @Override
+    public int read() throws IOException {
+      lock.lock();
+      try {
+        if (buf == null || !buf.hasRemaining()) {
+          return -1;
+        }
+        return buf.get() & 0xff;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+      if (off < 0 || len < 0 || off > b.length - len) {
+        throw new IndexOutOfBoundsException();
+      } else if (len == 0) {
+        return 0;
+      }
+      lock.lock();
+      try {
+        if (buf == null || !buf.hasRemaining()) {
+          return -1;
+        }
+        int n = Math.min(len, buf.remaining());
+        buf.get(b, off, n);
+        return n;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      lock.lock();
+      try {
+        if (buf == null || n <= 0) {
+          return 0;
+        }
+        int k = (int) Math.min(n, buf.remaining());
+        buf.position(buf.position() + k);
+        return k;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      lock.lock();
+      try {
+        return buf == null ? 0 : buf.remaining();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      lock.lock();
+      try {
+        if (buf == null) {
+          return;
+        }
+        buf = null;
+        resource.close();
+      } finally {
+        lock.unlock();
+      }
     }
   }
 
   private class PackFileInputStream extends InputStream {
+    private final PackEntry entry;
+    private final MappedResource resource;
+    // 読込み位置の更新と、アンマップする領域への読込みを排他する
+    private final ReentrantLock lock = new ReentrantLock();
     private volatile boolean closed = false;
-    private int dataRemaining;
+    private long dataRemaining;
 
+    private ByteBuffer[] regions;
+    private int regionIndex;
     private ByteBuffer dataBuf;
 
     private byte[] tmpBuf = new byte[512];
 
-    public PackFileInputStream(File file, PackEntry e) throws IOException {
+    public PackFileInputStream(PackEntry e, long position) throws IOException {
       Objects.requireNonNull(e);
-      int size = e.getSize();
+      long size = Math.max(0, e.getSize() - position);
+      this.entry = e;
       this.dataRemaining = size;
 
       if (0 < size) {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-          this.dataBuf = raf.getChannel().map(MapMode.READ_ONLY, e.getOffset(), size);
-        }
+        this.regions = mapRegions(e.getOffset() + position, size);
+        this.dataBuf = regions[0];
       }
+      metrics.streamOpened(e);
+      PackMetrics m = metrics;
+      PackMemoryBudget b = budget;
+      long mapped = mappedBytes(regions);
+      resource = new MappedResource(this, "Stream of " + e.getName(),
+          preloaded == null ? regions : null, () -> {
+            b.releaseMapped(mapped);
+            m.streamClosed(e);
+          });
     }
 
     @Override
@@ -366,22 +1245,28 @@ public class PackFile implements Closeable, PackConstants {
       if (closed) {
         return -1;
       }
-      if (dataRemaining <= 0) {
-        close();
-        return -1;
-      }
 
-      synchronized (PackFile.this) {
-        int newLength = len;
-        if (dataRemaining < len) {
-          newLength = dataRemaining;
-        }
+      lock.lock();
+      try {
         ensureOpenOrPackException();
+        if (closed) {
+          return -1;
+        }
+        if (dataRemaining <= 0) {
+          close();
+          return -1;
+        }
+        if (!dataBuf.hasRemaining()) {
+          dataBuf = regions[++regionIndex];
+        }
 
+        int newLength = Math.min(len, dataBuf.remaining());
         dataBuf.get(b, off, newLength);
-        dataRemaining = dataBuf.remaining();
+        dataRemaining -= newLength;
 
         return newLength;
+      } finally {
+        lock.unlock();
       }
     }
 
@@ -429,14 +1314,147 @@ public class PackFile implements Closeable, PackConstants {
       if (closed) {
         return;
       }
-      closed = true;
-      dataRemaining = 0;
-      dataBuf = null;
+      lock.lock();
+      try {
+        closed = true;
+        dataRemaining = 0;
+        dataBuf = null;
+        regions = null;
+        resource.close();
+      } finally {
+        lock.unlock();
+      }
     }
+  }
 
-    @Override
-    protected void finalize() throws IOException {
-      close();
+  private ByteBuffer[] mapRegions(long offset, long size) throws IOException {
+    return mapRegions(offset, size, MAX_REGION_SIZE);
+  }
+
+  // LZSSDecompresserは1つのバッファから読み込むため、LZSS圧縮されたデータ領域は分割せずに1つの領域としてマップする
+  private ByteBuffer[] mapCompressed(PackEntry e) throws IOException {
+    if (e.getCompressedSize() > Integer.MAX_VALUE) {
+      throw new PackException("LZSS entry too large: " + e.getName());
+    }
+    return mapRegions(e.getOffset(), e.getCompressedSize(), Integer.MAX_VALUE);
+  }
+
+  private ByteBuffer[] mapRegions(long offset, long size, long maxRegionSize)
+      throws IOException {
+    if (preloaded != null) {
+      if (preloaded.limit() < offset + size) {
+        throw new PackException("Data is broken (entry exceeds end of file)");
+      }
+      ByteBuffer d = preloaded.duplicate();
+      d.position((int) offset);
+      d.limit((int) (offset + size));
+      return new ByteBuffer[] {d.slice()};
+    }
+    int count = (int) ((size + maxRegionSize - 1) / maxRegionSize);
+    ByteBuffer[] regions = new ByteBuffer[count];
+    long position = offset;
+    budget.acquireMapped(size);
+    try {
+      for (int i = 0; i < count; i++) {
+        long regionSize = Math.min(maxRegionSize, size - i * maxRegionSize);
+        long p = position;
+        regions[i] = onChannel(ch -> ch.map(MapMode.READ_ONLY, p, regionSize));
+        position += regionSize;
+      }
+    } catch (IOException | RuntimeException e) {
+      MappedResource.unmap(regions);
+      budget.releaseMapped(size);
+      throw e;
+    }
+    metrics.regionMapped(size);
+    return regions;
+  }
+
+  @FunctionalInterface
+  private interface ChannelOperation<T> {
+    T apply(FileChannel ch) throws IOException;
+  }
+
+  /*
+   * チャネルに対する操作を実行する。このスレッドが割り込まれてチャネルが閉じられた場合は、チャネルを開き直してから
+   * ClosedByInterruptExceptionをスローする。他のスレッドの割込みでチャネルが閉じられた場合は、開き直したチャネルで操作をやり直す。
+   */
+  private <T> T onChannel(ChannelOperation<T> op) throws IOException {
+    while (true) {
+      FileChannel ch = channel.get();
+      try {
+        return op.apply(ch);
+      } catch (ClosedByInterruptException e) {
+        reopen(ch);
+        throw e;
+      } catch (ClosedChannelException e) {
+        reopen(ch);
+      }
+    }
+  }
+
+  private void reopen(FileChannel failed) throws IOException {
+    closeLock.lock();
+    try {
+      ensureOpenOrPackException();
+      if (channel.get() == failed) {
+        channel.set(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+      }
+    } finally {
+      closeLock.unlock();
+    }
+  }
+
+  // mapRegionsで得た領域のうち、予算に計上されているバイト数を返す
+  private long mappedBytes(ByteBuffer[] regions) {
+    long n = 0;
+    if (preloaded == null && regions != null) {
+      for (ByteBuffer region : regions) {
+        n += region.capacity();
+      }
+    }
+    return n;
+  }
+
+  private void readAt(long position, byte[] b) throws IOException {
+    if (preloaded == null) {
+      ByteBuffer buf = ByteBuffer.wrap(b);
+      while (buf.hasRemaining()
+          && onChannel(ch -> ch.read(buf, position + buf.position())) != -1) {
+      }
+    } else if (position + b.length <= preloaded.limit()) {
+      ByteBuffer d = preloaded.duplicate();
+      d.position((int) position);
+      d.get(b);
+    }
+  }
+
+  // readAll用に、指定された範囲を1回の読込みでバッファに読み込む
+  private ByteBuffer readRange(long offset, int size) throws IOException {
+    if (preloaded != null) {
+      return mapRegions(offset, size)[0];
+    }
+    budget.acquireBuffer(size);
+    try {
+      ByteBuffer buf = ByteBuffer.allocate(size);
+      while (buf.hasRemaining()) {
+        if (onChannel(ch -> ch.read(buf, offset + buf.position())) == -1) {
+          throw new PackException("Data is broken (entry exceeds end of file)");
+        }
+      }
+      buf.flip();
+      return buf;
+    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+      budget.releaseBuffer(size);
+      throw e;
+    }
+  }
+
+  // mapRegionsで得た領域を解放する。メモリに読み込んだファイルのスライスはGCに任せる
+  private void release(ByteBuffer[] regions) {
+    if (preloaded == null) {
+      MappedResource.unmap(regions);
+      budget.releaseMapped(mappedBytes(regions));
     }
   }
 
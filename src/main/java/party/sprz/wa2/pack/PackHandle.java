@@ -0,0 +1,371 @@
+package party.sprz.wa2.pack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * このクラスは、ディスク上で置き換えられるPackファイルを、読込みを止めずに新しい版へ切り替えるハンドルです。
+ *
+ * ハンドルは一定の間隔でファイルのサイズ、更新時刻及びファイル・キーを調べ、変更された値が次の確認まで変わらなければ、
+ * 監視スレッドで新しい版を開きます。開けた場合は、以降の読込みが新しい版のエントリ・テーブルとデータを使うように、1回の参照の置換えで切り替えます。
+ * 切替え前に取得されたリースと入力ストリームは古い版を読み続け、それらがすべて閉じられたときに古い版が閉じられます。
+ * 新しい版を開けなかった場合は古い版を使い続け、ファイルが再び変更されるのを待ちます。
+ *
+ * デプロイでは、新しいファイルを別の名前で書き込んでから名前を変更して置き換えてください。開いているファイルをその場で書き換えると、
+ * 古い版のマップされた領域の内容も変わります。
+ *
+ * @author Nan
+ *
+ */
+public class PackHandle implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(PackHandle.class);
+
+  /**
+   * Packファイルの版を開く処理です。プリフェッチャやキャッシュの設定は、開くたびにここで行います。
+   */
+  @FunctionalInterface
+  public interface Opener {
+    /**
+     * Packファイルを開きます。
+     *
+     * @param file Packファイル
+     * @return 開いたPackファイル
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    PackFile open(File file) throws IOException;
+  }
+
+  private final File file;
+  private final Opener opener;
+  private final ScheduledExecutorService watcher;
+  private volatile Generation current;
+
+  // 以下はswapLockで保護される。読込みはこのロックを取らない
+  private final ReentrantLock swapLock = new ReentrantLock();
+  private FileState candidate;
+  private FileState failed;
+
+  /**
+   * Packファイルを開き、1秒ごとに変更を確認する新しいハンドルを作成します。
+   *
+   * @param file Packファイル
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public PackHandle(File file) throws IOException {
+    this(file, 1000, PackFile::new);
+  }
+
+  /**
+   * Packファイルを開き、指定された間隔で変更を確認する新しいハンドルを作成します。
+   *
+   * @param file Packファイル
+   * @param pollMillis 変更を確認する間隔(ミリ秒)。0の場合は確認せず、{@link #reload()}でのみ切り替える
+   * @param opener Packファイルの版を開く処理
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalArgumentException pollMillisが負の場合
+   */
+  public PackHandle(File file, long pollMillis, Opener opener) throws IOException {
+    if (pollMillis < 0) {
+      throw new IllegalArgumentException("negative poll interval");
+    }
+    this.file = Objects.requireNonNull(file);
+    this.opener = Objects.requireNonNull(opener);
+    FileState state = FileState.of(file);
+    this.current = new Generation(opener.open(file), state, 1);
+    if (0 < pollMillis) {
+      this.watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "PackHandle " + file.getName());
+        t.setDaemon(true);
+        return t;
+      });
+      watcher.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    } else {
+      this.watcher = null;
+    }
+  }
+
+  /**
+   * 現在の版のPackファイルを、閉じるまで切り替えずに使用するためのリースを取得します。
+   *
+   * 複数のエントリを同じ版から読み込む場合に使用します。リースを閉じるまで、その版のPackファイルは閉じられません。
+   *
+   * @return 現在の版のリース
+   * @throws IllegalStateException ハンドルが閉じられている場合
+   */
+  public Lease acquire() {
+    return new Lease(retainCurrent());
+  }
+
+  /**
+   * 現在の版から、指定された名前のエントリの内容を読み込む入力ストリームを返します。
+   *
+   * ストリームを閉じるまで、その版のPackファイルは閉じられません。
+   *
+   * @param name エントリの名前
+   * @return エントリの内容を読み込む入力ストリーム。エントリがない場合はnull
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   * @throws IllegalStateException ハンドルが閉じられている場合
+   */
+  public InputStream createInputStream(String name) throws IOException {
+    Objects.requireNonNull(name);
+    Generation g = retainCurrent();
+    try {
+      PackEntry e = g.pack.getEntry(name);
+      if (e == null) {
+        g.release();
+        return null;
+      }
+      return new LeasedInputStream(g.pack.createInputStream(e), g, name);
+    } catch (IOException | RuntimeException ex) {
+      g.release();
+      throw ex;
+    }
+  }
+
+  // 切替えと競合した場合は、新しい版を取得し直す
+  private Generation retainCurrent() {
+    while (true) {
+      Generation g = current;
+      if (g == null) {
+        throw new IllegalStateException("PackHandle has been closed");
+      }
+      if (g.retain()) {
+        return g;
+      }
+    }
+  }
+
+  /**
+   * ファイルの変更を待たずに、ただちにPackファイルを開き直して切り替えます。
+   *
+   * @throws PackException Pack形式エラーが発生した場合。現在の版は変更されない
+   * @throws IOException 入出力エラーが発生した場合。現在の版は変更されない
+   * @throws IllegalStateException ハンドルが閉じられている場合
+   */
+  public void reload() throws IOException {
+    swapLock.lock();
+    try {
+      swap(FileState.of(file));
+    } finally {
+      swapLock.unlock();
+    }
+  }
+
+  private void poll() {
+    swapLock.lock();
+    try {
+      Generation g = current;
+      if (g == null) {
+        return;
+      }
+      FileState s = FileState.of(file);
+      if (s.equals(g.state) || s.equals(failed)) {
+        candidate = null;
+        return;
+      }
+      // 書込み中のファイルを開かないように、変更後の値が次の確認まで変わらないことを確かめる
+      if (!s.equals(candidate)) {
+        candidate = s;
+        return;
+      }
+      candidate = null;
+      try {
+        swap(s);
+      } catch (IOException | RuntimeException e) {
+        failed = s;
+        LOG.warn("failed to reload {}, keeping generation {}", file, g.number, e);
+      }
+    } catch (NoSuchFileException e) {
+      // 名前の変更による置換えの途中
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("failed to check {}", file, e);
+    } finally {
+      swapLock.unlock();
+    }
+  }
+
+  private void swap(FileState state) throws IOException {
+    Generation old = current;
+    if (old == null) {
+      throw new IllegalStateException("PackHandle has been closed");
+    }
+    PackFile pack = opener.open(file);
+    Generation next = new Generation(pack, state, old.number + 1);
+    current = next;
+    failed = null;
+    LOG.info("switched {} to generation {} ({} entries)", file, next.number, pack.size());
+    old.release();
+  }
+
+  /**
+   * 現在の版の番号を返します。最初に開いた版は1で、切り替えるたびに1ずつ増えます。
+   *
+   * @return 現在の版の番号
+   * @throws IllegalStateException ハンドルが閉じられている場合
+   */
+  public long getGeneration() {
+    Generation g = current;
+    if (g == null) {
+      throw new IllegalStateException("PackHandle has been closed");
+    }
+    return g.number;
+  }
+
+  /**
+   * 変更の確認を停止し、現在の版を手放します。使用中のリースと入力ストリームは、閉じられるまで読み込めます。
+   *
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() {
+    if (watcher != null) {
+      watcher.shutdownNow();
+    }
+    swapLock.lock();
+    try {
+      Generation g = current;
+      current = null;
+      if (g != null) {
+        g.release();
+      }
+    } finally {
+      swapLock.unlock();
+    }
+  }
+
+  /**
+   * このクラスは、ハンドルから取得した1つの版のPackファイルへのリースです。
+   */
+  public static final class Lease implements Closeable {
+    private final PackFile pack;
+    private final MappedResource resource;
+
+    private Lease(Generation g) {
+      this.pack = g.pack;
+      this.resource = new MappedResource(this, "Lease of " + g.pack.getName(), null, g::release);
+    }
+
+    /**
+     * リースした版のPackファイルを返します。このPackファイルを閉じてはいけません。
+     *
+     * @return リースした版のPackファイル
+     */
+    public PackFile getPackFile() {
+      return pack;
+    }
+
+    /**
+     * リースを返却します。2回目以降の呼出しは何も行いません。
+     *
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+      resource.close();
+    }
+  }
+
+  private static final class LeasedInputStream extends FilterInputStream {
+    private final MappedResource resource;
+
+    LeasedInputStream(InputStream in, Generation g, String name) {
+      super(in);
+      this.resource = new MappedResource(this, "Stream of " + name, null, g::release);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        resource.close();
+      }
+    }
+  }
+
+  // 1つの版のPackファイルと、その参照数。参照数にはハンドルが現在の版として保持する分の1を含み、0になったら閉じる
+  private static final class Generation {
+    final PackFile pack;
+    final FileState state;
+    final long number;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    Generation(PackFile pack, FileState state, long number) {
+      this.pack = pack;
+      this.state = state;
+      this.number = number;
+    }
+
+    boolean retain() {
+      while (true) {
+        int r = refs.get();
+        if (r == 0) {
+          return false;
+        }
+        if (refs.compareAndSet(r, r + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if (refs.decrementAndGet() == 0) {
+        try {
+          pack.close();
+        } catch (IOException e) {
+          LOG.warn("failed to close {}", pack.getName(), e);
+        }
+        LOG.debug("retired generation {} of {}", number, pack.getName());
+      }
+    }
+  }
+
+  // ファイルが置き換えられたかどうかを判定するための属性
+  private static final class FileState {
+    final long size;
+    final long lastModified;
+    final Object fileKey;
+
+    private FileState(long size, long lastModified, Object fileKey) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.fileKey = fileKey;
+    }
+
+    static FileState of(File file) throws IOException {
+      BasicFileAttributes a = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      return new FileState(a.size(), a.lastModifiedTime().toMillis(), a.fileKey());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof FileState)) {
+        return false;
+      }
+      FileState s = (FileState) obj;
+      return size == s.size && lastModified == s.lastModified
+          && Objects.equals(fileKey, s.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(size, lastModified, fileKey);
+    }
+  }
+}
@@ -59,8 +59,8 @@ public abstract class PackHeaderReader implements PackConstants {
 
     int compressedFlag = get32(b, METHOD_OFF);
     String filename = new String(b, ENTRYNAME_OFF, ENTRYNAME_SIZE, PACK_ENCODING).trim();
-    int offset = get32(b, OFFSET_OFF);
-    int length = get32(b, K_COMPSIZE_OFF);
+    long offset = getU32(b, OFFSET_OFF);
+    long length = getU32(b, K_COMPSIZE_OFF);
 
     e = new PackEntry(filename);
     e.setMethod(compressedFlag);
@@ -81,4 +81,8 @@ public abstract class PackHeaderReader implements PackConstants {
   private int get32(byte[] b, int off) {
     return ByteBuffer.wrap(b, off, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
   }
+
+  private long getU32(byte[] b, int off) {
+    return Integer.toUnsignedLong(get32(b, off));
+  }
 }
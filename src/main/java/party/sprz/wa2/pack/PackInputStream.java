@@ -14,7 +14,7 @@ import java.util.Objects;
  */
 public class PackInputStream extends InputStream implements PackConstants {
   private PackEntry entry;
-  private int dataRemaining = -1;
+  private long dataRemaining = -1;
   private int entryRemaining = -1;
 
   private boolean closed = false;
@@ -24,6 +24,9 @@ public class PackInputStream extends InputStream implements PackConstants {
 
   private InputStream in;
   private LZSSDecompresser decomp;
+  // 圧縮データを保持するバッファの予算と、現在のエントリで確保しているバイト数
+  private final PackMemoryBudget budget = PackMemoryBudget.getDefault();
+  private long reserved;
 
   private byte[] tmpBuf = new byte[512];
 
@@ -101,7 +104,8 @@ public class PackInputStream extends InputStream implements PackConstants {
 
     if (dataRemaining <= 0) {
       if (decomp != null) {
-        decomp.close();
+        decomp.checkIntegrity();
+        closeDecompresser();
       }
       entryEOF = true;
       entry = null;
@@ -110,7 +114,7 @@ public class PackInputStream extends InputStream implements PackConstants {
 
     int readLength = len;
     if (dataRemaining <= len) {
-      readLength = dataRemaining;
+      readLength = (int) dataRemaining;
     }
 
     int r;
@@ -208,11 +212,18 @@ public class PackInputStream extends InputStream implements PackConstants {
     int entryIndex = entryCache.length - entryRemaining;
     PackEntry e = entryCache[entryIndex];
 
-    int size;
+    long size;
     // LZSS compressed file
     if (e.getMethod() == 1) {
-      byte[] b = new byte[e.getCompressedSize()];
-      in.read(b);
+      if (e.getCompressedSize() > Integer.MAX_VALUE) {
+        throw new PackException("LZSS entry too large: " + e.getName());
+      }
+      // 前のエントリを読み終えずに例外が発生した場合も、そのバッファの予算を解放してから確保する
+      closeDecompresser();
+      budget.acquireBuffer(e.getCompressedSize());
+      reserved = e.getCompressedSize();
+      byte[] b = new byte[(int) e.getCompressedSize()];
+      readFully(b);
       decomp = new LZSSDecompresser(b);
       size = decomp.getSize();
     }
@@ -226,6 +237,26 @@ public class PackInputStream extends InputStream implements PackConstants {
     return e;
   }
 
+  private void closeDecompresser() {
+    if (decomp != null) {
+      decomp.close();
+      decomp = null;
+    }
+    budget.releaseBuffer(reserved);
+    reserved = 0;
+  }
+
+  private void readFully(byte[] b) throws IOException {
+    int n = 0;
+    while (n < b.length) {
+      int r = in.read(b, n, b.length - n);
+      if (r == -1) {
+        throw new PackException("Data is broken (compressed data is truncated)");
+      }
+      n += r;
+    }
+  }
+
   private void makeEntryHeader() throws IOException {
     PackHeaderReader peReader = new PackHeaderReader() {
       @Override
@@ -278,9 +309,7 @@ public class PackInputStream extends InputStream implements PackConstants {
   @Override
   public void close() throws IOException {
     in.close();
-    if (decomp != null) {
-      decomp.close();
-    }
+    closeDecompresser();
     entry = null;
     entryCache = null;
     closed = true;
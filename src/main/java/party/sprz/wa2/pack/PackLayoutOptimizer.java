@@ -0,0 +1,254 @@
+package party.sprz.wa2.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * このクラスは、記録されたアクセス順序に基づいて、同時に読み込まれるエントリのデータ領域が連続するようにPackファイルを書き換えます。
+ *
+ * エントリ・テーブルの順序と内容はオフセットを除いてそのまま保たれ、データ領域だけがアクセス順序で並べ替えられます。アクセス順序に現れないエントリは、
+ * 元のオフセット順で後ろに配置されます。データは圧縮されたまま複写されます。
+ *
+ * @author Nan
+ *
+ * @see PackAccessTrace
+ */
+public class PackLayoutOptimizer implements PackConstants {
+  private static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+  private final List<String> trace;
+
+  /**
+   * 指定されたアクセス順序を使用する新しいオプティマイザを作成します。
+   *
+   * @param trace アクセスされたエントリの名前のリスト
+   */
+  public PackLayoutOptimizer(List<String> trace) {
+    this.trace = new ArrayList<>(Objects.requireNonNull(trace));
+  }
+
+  /**
+   * Packファイルを最適化した配置で書き出します。
+   *
+   * @param src 元のPackファイル
+   * @param dst 書込み先のPackファイル。srcと同じファイルでもよい
+   * @return シーク回数の見積り
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public Result optimize(File src, File dst) throws IOException {
+    // srcとdstが同じファイルの場合に読み込む前に消さないように、同じディレクトリの一時ファイルに書き込んでから置き換える
+    Path temp = Files.createTempFile(dst.getAbsoluteFile().getParentFile().toPath(),
+        dst.getName(), ".part");
+    try {
+      Result result;
+      try (PackFile pf = new PackFile(src);
+          FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+          FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        PackEntry[] table = pf.stream().toArray(PackEntry[]::new);
+
+        ByteBuffer header = ByteBuffer.allocate(PACKHEADER_SIZE + KCAPHEADER_SIZE * table.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+          if (in.read(header, header.position()) == -1) {
+            throw new PackException("KCAP Header is broken (header size does'nt match)");
+          }
+        }
+
+        // 同じデータ領域を共有するエントリがあるため、元のオフセットごとに1度だけ配置する
+        Map<Long, Long> ranges = new LinkedHashMap<>();
+        for (PackEntry e : order(table)) {
+          ranges.merge(e.getOffset(), e.getCompressedSize(), Math::max);
+        }
+        Map<Long, Long> moved = new HashMap<>();
+        long pos = header.capacity();
+        for (Map.Entry<Long, Long> r : ranges.entrySet()) {
+          moved.put(r.getKey(), pos);
+          pos += r.getValue();
+        }
+        if (pos > MAX_OFFSET + 1) {
+          throw new PackException("Archive too large for KCAP");
+        }
+
+        for (int i = 0; i < table.length; i++) {
+          int off = PACKHEADER_SIZE + KCAPHEADER_SIZE * i + OFFSET_OFF;
+          header.putInt(off, (int) (long) moved.get(table[i].getOffset()));
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+          out.write(header);
+        }
+
+        for (Map.Entry<Long, Long> r : ranges.entrySet()) {
+          long done = 0;
+          while (done < r.getValue()) {
+            long n = in.transferTo(r.getKey() + done, r.getValue() - done, out);
+            if (n <= 0) {
+              throw new PackException("Data is broken (entry exceeds end of file)");
+            }
+            done += n;
+          }
+        }
+
+        Map<String, PackEntry> byName = byName(table);
+        result = new Result(trace.size(), estimate(byName, null), estimate(byName, moved));
+      }
+      Files.move(temp, dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return result;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * 最適化した配置での、エントリのデータ領域の順序を返します。
+   *
+   * @param pack Packファイル
+   * @return データ領域を配置する順序で並べたエントリのリスト
+   * @throws IllegalStateException Packファイルが閉じられている場合
+   */
+  public List<PackEntry> order(PackFile pack) {
+    return order(pack.stream().toArray(PackEntry[]::new));
+  }
+
+  private List<PackEntry> order(PackEntry[] table) {
+    Map<String, PackEntry> byName = byName(table);
+    Map<PackEntry, Boolean> placed = new LinkedHashMap<>();
+    for (String name : trace) {
+      PackEntry e = byName.get(name);
+      if (e != null) {
+        placed.putIfAbsent(e, Boolean.TRUE);
+      }
+    }
+
+    List<PackEntry> rest = new ArrayList<>();
+    for (PackEntry e : table) {
+      if (!placed.containsKey(e)) {
+        rest.add(e);
+      }
+    }
+    rest.sort(Comparator.comparingLong(PackEntry::getOffset));
+
+    List<PackEntry> order = new ArrayList<>(placed.keySet());
+    order.addAll(rest);
+    return order;
+  }
+
+  private Map<String, PackEntry> byName(PackEntry[] table) {
+    Map<String, PackEntry> byName = new HashMap<>();
+    for (PackEntry e : table) {
+      byName.putIfAbsent(e.getName(), e);
+    }
+    return byName;
+  }
+
+  // アクセス順序を再生し、直前に読んだ領域の直後から始まらない読込みをシークとして数える
+  private Seeks estimate(Map<String, PackEntry> byName, Map<Long, Long> moved) {
+    long seeks = 0;
+    long distance = 0;
+    long prevEnd = -1;
+    for (String name : trace) {
+      PackEntry e = byName.get(name);
+      if (e == null) {
+        continue;
+      }
+      long offset = moved == null ? e.getOffset() : moved.get(e.getOffset());
+      if (prevEnd != -1 && offset != prevEnd) {
+        seeks++;
+        distance += Math.abs(offset - prevEnd);
+      }
+      prevEnd = offset + e.getCompressedSize();
+    }
+    return new Seeks(seeks, distance);
+  }
+
+  private static class Seeks {
+    final long count;
+    final long distance;
+
+    Seeks(long count, long distance) {
+      this.count = count;
+      this.distance = distance;
+    }
+  }
+
+  /**
+   * このクラスは、最適化の前後でアクセス順序を再生したときのシーク回数の見積りを表します。
+   */
+  public static class Result {
+    private final int accesses;
+    private final Seeks before;
+    private final Seeks after;
+
+    Result(int accesses, Seeks before, Seeks after) {
+      this.accesses = accesses;
+      this.before = before;
+      this.after = after;
+    }
+
+    /**
+     * 再生したアクセスの数を返します。
+     *
+     * @return アクセスの数
+     */
+    public int getAccesses() {
+      return accesses;
+    }
+
+    /**
+     * 最適化前のシーク回数を返します。
+     *
+     * @return 最適化前のシーク回数
+     */
+    public long getSeeksBefore() {
+      return before.count;
+    }
+
+    /**
+     * 最適化後のシーク回数を返します。
+     *
+     * @return 最適化後のシーク回数
+     */
+    public long getSeeksAfter() {
+      return after.count;
+    }
+
+    /**
+     * 最適化前のシーク距離の合計(バイト)を返します。
+     *
+     * @return 最適化前のシーク距離の合計
+     */
+    public long getSeekDistanceBefore() {
+      return before.distance;
+    }
+
+    /**
+     * 最適化後のシーク距離の合計(バイト)を返します。
+     *
+     * @return 最適化後のシーク距離の合計
+     */
+    public long getSeekDistanceAfter() {
+      return after.distance;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("accesses=%d, seeks %d -> %d, seek distance %d -> %d bytes", accesses,
+          before.count, after.count, before.distance, after.distance);
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package party.sprz.wa2.pack;
+
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * このクラスは、複数のPackFileやPackInputStreamにまたがって、マップした領域と圧縮データを保持するバッファの合計サイズを制限します。
+ *
+ * 上限を超える要求は、他の要求が解放するまで最大maxWaitMillisミリ秒待機し、それでも確保できない場合はPackExceptionで失敗します。
+ * maxWaitMillisが0の場合は待機せずにただちに失敗します。1回の要求が上限より大きい場合でも、その種類の使用量が0であれば許可されるため、
+ * 大きなエントリが永久に読めなくなることはありません。
+ *
+ * PackFileとPackInputStreamは作成時の{@link #getDefault()}を使用します。デフォルトの上限はシステム・プロパティ
+ * {@value #MAX_MAPPED_PROPERTY}、{@value #MAX_BUFFER_PROPERTY}及び{@value #MAX_WAIT_PROPERTY}で指定でき、指定しない場合は無制限です。
+ *
+ * @author Nan
+ *
+ */
+public class PackMemoryBudget {
+  static final String MAX_MAPPED_PROPERTY = "party.sprz.wa2.pack.maxMappedBytes";
+  static final String MAX_BUFFER_PROPERTY = "party.sprz.wa2.pack.maxBufferBytes";
+  static final String MAX_WAIT_PROPERTY = "party.sprz.wa2.pack.maxWaitMillis";
+
+  /**
+   * 制限を行わないPackMemoryBudgetです。使用量は集計されます。
+   */
+  public static final PackMemoryBudget UNLIMITED =
+      new PackMemoryBudget(Long.MAX_VALUE, Long.MAX_VALUE, 0);
+
+  private static volatile PackMemoryBudget defaultBudget = fromSystemProperties();
+
+  private final long maxMappedBytes;
+  private final long maxBufferBytes;
+  private final long maxWaitNanos;
+
+  private final AtomicLong mappedBytes = new AtomicLong();
+  private final AtomicLong bufferBytes = new AtomicLong();
+  // 上限を超えた要求だけがロックを取って待機する。解放時は待機中の要求がある場合だけ通知する
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * 新しいPackMemoryBudgetを作成します。
+   *
+   * @param maxMappedBytes マップした領域の合計サイズの上限(バイト)
+   * @param maxBufferBytes 圧縮データなどを保持するバッファの合計サイズの上限(バイト)
+   * @param maxWaitMillis 上限を超えたときに待機する最大時間(ミリ秒)。0の場合は待機しない
+   */
+  public PackMemoryBudget(long maxMappedBytes, long maxBufferBytes, long maxWaitMillis) {
+    if (maxMappedBytes < 0 || maxBufferBytes < 0 || maxWaitMillis < 0) {
+      throw new IllegalArgumentException("negative limit");
+    }
+    this.maxMappedBytes = maxMappedBytes;
+    this.maxBufferBytes = maxBufferBytes;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+  }
+
+  /**
+   * 以降に作成されるPackFileとPackInputStreamが使用するPackMemoryBudgetを返します。
+   *
+   * @return デフォルトのPackMemoryBudget
+   */
+  public static PackMemoryBudget getDefault() {
+    return defaultBudget;
+  }
+
+  /**
+   * 以降に作成されるPackFileとPackInputStreamが使用するPackMemoryBudgetを設定します。作成済みのものには影響しません。
+   *
+   * @param budget デフォルトのPackMemoryBudget
+   */
+  public static void setDefault(PackMemoryBudget budget) {
+    defaultBudget = Objects.requireNonNull(budget);
+  }
+
+  private static PackMemoryBudget fromSystemProperties() {
+    long mapped = Long.getLong(MAX_MAPPED_PROPERTY, Long.MAX_VALUE);
+    long buffer = Long.getLong(MAX_BUFFER_PROPERTY, Long.MAX_VALUE);
+    long wait = Long.getLong(MAX_WAIT_PROPERTY, 0);
+    if (mapped == Long.MAX_VALUE && buffer == Long.MAX_VALUE) {
+      return UNLIMITED;
+    }
+    return new PackMemoryBudget(mapped, buffer, wait);
+  }
+
+  /**
+   * マップする領域の分の予算を確保します。
+   *
+   * @param bytes マップするバイト数
+   * @throws PackException 予算を確保できなかった場合
+   * @throws InterruptedIOException 待機中に割り込まれた場合
+   */
+  void acquireMapped(long bytes) throws PackException, InterruptedIOException {
+    acquire(bytes, true, true);
+  }
+
+  /**
+   * アンマップした領域の分の予算を解放します。
+   *
+   * @param bytes アンマップしたバイト数
+   */
+  void releaseMapped(long bytes) {
+    release(bytes, true);
+  }
+
+  /**
+   * バッファの分の予算を確保します。
+   *
+   * @param bytes バッファのバイト数
+   * @throws PackException 予算を確保できなかった場合
+   * @throws InterruptedIOException 待機中に割り込まれた場合
+   */
+  void acquireBuffer(long bytes) throws PackException, InterruptedIOException {
+    acquire(bytes, false, true);
+  }
+
+  /**
+   * 待機せずにバッファの分の予算を確保します。省略できる読込みに使用するため、使用量が0でも上限を超える要求は許可しません。
+   *
+   * @param bytes バッファのバイト数
+   * @return 確保できた場合はtrue
+   */
+  boolean tryAcquireBuffer(long bytes) {
+    try {
+      return acquire(bytes, false, false);
+    } catch (PackException | InterruptedIOException e) {
+      // 待機しない場合は発生しない
+      return false;
+    }
+  }
+
+  /**
+   * 不要になったバッファの分の予算を解放します。
+   *
+   * @param bytes バッファのバイト数
+   */
+  void releaseBuffer(long bytes) {
+    release(bytes, false);
+  }
+
+  private boolean acquire(long bytes, boolean mapped, boolean wait)
+      throws PackException, InterruptedIOException {
+    if (bytes <= 0) {
+      return true;
+    }
+    AtomicLong used = mapped ? mappedBytes : bufferBytes;
+    long max = mapped ? maxMappedBytes : maxBufferBytes;
+    if (tryAdd(used, bytes, max, wait)) {
+      return true;
+    }
+    if (!wait || maxWaitNanos == 0) {
+      rejections.increment();
+      if (!wait) {
+        return false;
+      }
+      throw exceeded(used, bytes, max, mapped);
+    }
+
+    waits.increment();
+    lock.lock();
+    waiters.incrementAndGet();
+    try {
+      long nanos = maxWaitNanos;
+      while (!tryAdd(used, bytes, max, true)) {
+        if (nanos <= 0) {
+          rejections.increment();
+          throw exceeded(used, bytes, max, mapped);
+        }
+        try {
+          nanos = released.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for memory budget");
+        }
+      }
+      return true;
+    } finally {
+      waiters.decrementAndGet();
+      lock.unlock();
+    }
+  }
+
+  // oversizeがtrueで使用量が0の場合は、上限より大きい要求も許可する
+  private static boolean tryAdd(AtomicLong used, long bytes, long max, boolean oversize) {
+    while (true) {
+      long u = used.get();
+      if (!(oversize && u == 0) && bytes > max - u) {
+        return false;
+      }
+      if (used.compareAndSet(u, u + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  private static PackException exceeded(AtomicLong used, long bytes, long max, boolean mapped) {
+    return new PackException(String.format("Memory budget exceeded (%s: %d + %d > %d bytes)",
+        mapped ? "mapped" : "buffer", used.get(), bytes, max));
+  }
+
+  private void release(long bytes, boolean mapped) {
+    if (bytes <= 0) {
+      return;
+    }
+    (mapped ? mappedBytes : bufferBytes).addAndGet(-bytes);
+    if (waiters.get() > 0) {
+      lock.lock();
+      try {
+        released.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * マップした領域の合計サイズの上限を返します。
+   *
+   * @return 上限(バイト)
+   */
+  public long getMaxMappedBytes() {
+    return maxMappedBytes;
+  }
+
+  /**
+   * バッファの合計サイズの上限を返します。
+   *
+   * @return 上限(バイト)
+   */
+  public long getMaxBufferBytes() {
+    return maxBufferBytes;
+  }
+
+  /**
+   * 現在マップされている領域の合計サイズを返します。
+   *
+   * @return 使用量(バイト)
+   */
+  public long getMappedBytes() {
+    return mappedBytes.get();
+  }
+
+  /**
+   * 現在確保されているバッファの合計サイズを返します。
+   *
+   * @return 使用量(バイト)
+   */
+  public long getBufferBytes() {
+    return bufferBytes.get();
+  }
+
+  /**
+   * 予算を確保するために待機した要求の数を返します。
+   *
+   * @return 待機した要求の数
+   */
+  public long getWaitCount() {
+    return waits.sum();
+  }
+
+  /**
+   * 予算を確保できずに失敗した要求の数を返します。
+   *
+   * @return 失敗した要求の数
+   */
+  public long getRejectionCount() {
+    return rejections.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("mapped=%d/%d, buffer=%d/%d, waits=%d, rejections=%d",
+        getMappedBytes(), maxMappedBytes, getBufferBytes(), maxBufferBytes, getWaitCount(),
+        getRejectionCount());
+  }
+}
@@ -0,0 +1,93 @@
+package party.sprz.wa2.pack;
+
+/**
+ * このインタフェースは、PackFileとLZSS圧縮解除の計測値を受け取るために使用します。
+ *
+ * すべてのメソッドは何も行わないデフォルト実装を持つため、必要なものだけをオーバーライドしてください。計測が不要な場合は{@link #NONE}を使用します。
+ * PackFileは{@link #NONE}が指定されている場合、Java Flight Recorderで記録中でなければ、入力ストリームでの圧縮解除時間の計測自体を行いません。
+ *
+ * @author Nan
+ *
+ */
+public interface PackMetrics {
+  /**
+   * 何も記録しないPackMetricsです。
+   */
+  PackMetrics NONE = new PackMetrics() {};
+
+  /**
+   * Packファイルを開いたときに呼び出されます。
+   *
+   * @param name Packファイルのパス名
+   * @param entryCount Packファイル中のエントリの数
+   * @param nanos ヘッダーの読込みにかかった時間(ナノ秒)
+   */
+  default void archiveOpened(String name, int entryCount, long nanos) {}
+
+  /**
+   * エントリの内容が要求されたときに、要求された順序で呼び出されます。
+   *
+   * 入力ストリームの作成、キャッシュされた入力ストリームの取得、readメソッド及びreadAllメソッドでの読込みが対象です。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void entryAccessed(PackEntry entry) {}
+
+  /**
+   * Packファイルの領域をマップしたときに呼び出されます。
+   *
+   * @param bytes マップしたバイト数
+   */
+  default void regionMapped(long bytes) {}
+
+  /**
+   * エントリの入力ストリームを開いたときに呼び出されます。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void streamOpened(PackEntry entry) {}
+
+  /**
+   * エントリの入力ストリームを閉じたときに呼び出されます。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void streamClosed(PackEntry entry) {}
+
+  /**
+   * LZSS圧縮されたエントリの圧縮解除が終了したときに呼び出されます。
+   *
+   * @param compressedBytes 読み込んだ圧縮されたバイト数
+   * @param originalBytes 出力した圧縮解除されたバイト数
+   * @param nanos 圧縮解除にかかった時間(ナノ秒)
+   */
+  default void decompressed(long compressedBytes, long originalBytes, long nanos) {}
+
+  /**
+   * PackFile.getInputStreamで、同じエントリの開いている入力ストリームを再利用したときに呼び出されます。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void cacheHit(PackEntry entry) {}
+
+  /**
+   * PackFile.getInputStreamで、同じエントリの開いている入力ストリームがなく、新しく作成したときに呼び出されます。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void cacheMiss(PackEntry entry) {}
+
+  /**
+   * ディスク上のキャッシュ({@link PackEntryCache})から、圧縮解除されたエントリの内容を取得できたときに呼び出されます。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void diskCacheHit(PackEntry entry) {}
+
+  /**
+   * ディスク上のキャッシュ({@link PackEntryCache})にエントリの内容がなく、圧縮解除したときに呼び出されます。
+   *
+   * @param entry Packファイル・エントリ
+   */
+  default void diskCacheMiss(PackEntry entry) {}
+}
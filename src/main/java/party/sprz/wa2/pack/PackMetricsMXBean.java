@@ -0,0 +1,97 @@
+package party.sprz.wa2.pack;
+
+import java.util.Map;
+
+/**
+ * {@link JmxPackMetrics}がJMXで公開する属性を定義します。
+ *
+ * @author Nan
+ *
+ */
+public interface PackMetricsMXBean {
+  /**
+   * 開いたPackファイルの数を返します。
+   *
+   * @return 開いたPackファイルの数
+   */
+  long getArchivesOpened();
+
+  /**
+   * Packファイルごとの、最後に開いたときのヘッダー読込み時間を返します。
+   *
+   * @return Packファイルのパス名と読込み時間(ナノ秒)のマップ
+   */
+  Map<String, Long> getArchiveOpenNanos();
+
+  /**
+   * これまでにマップしたバイトの総数を返します。
+   *
+   * @return マップしたバイトの総数
+   */
+  long getBytesMapped();
+
+  /**
+   * これまでに開いたエントリの入力ストリームの数を返します。
+   *
+   * @return 開いた入力ストリームの数
+   */
+  long getEntriesOpened();
+
+  /**
+   * 現在開いているエントリの入力ストリームの数を返します。
+   *
+   * @return 開いている入力ストリームの数
+   */
+  long getLiveStreams();
+
+  /**
+   * getInputStreamで、開いている入力ストリームを再利用した回数を返します。
+   *
+   * @return 入力ストリームのキャッシュのヒット数
+   */
+  long getCacheHits();
+
+  /**
+   * getInputStreamで、入力ストリームを新しく作成した回数を返します。
+   *
+   * @return 入力ストリームのキャッシュのミス数
+   */
+  long getCacheMisses();
+
+  /**
+   * ディスク上のキャッシュのヒット数を返します。
+   *
+   * @return ディスク上のキャッシュのヒット数
+   */
+  long getDiskCacheHits();
+
+  /**
+   * ディスク上のキャッシュのミス数を返します。
+   *
+   * @return ディスク上のキャッシュのミス数
+   */
+  long getDiskCacheMisses();
+
+  /**
+   * これまでに圧縮解除で読み込んだ、圧縮されたバイトの総数を返します。
+   *
+   * @return 圧縮されたバイトの総数
+   */
+  long getCompressedBytes();
+
+  /**
+   * これまでに圧縮解除で出力した、圧縮解除されたバイトの総数を返します。
+   *
+   * @return 圧縮解除されたバイトの総数
+   */
+  long getDecompressedBytes();
+
+  /**
+   * 圧縮解除のスループットのヒストグラムを返します。
+   *
+   * 要素iは、スループットが2^(i-1)以上2^i未満MB/sだった圧縮解除の回数です。要素0は1MB/s未満、最後の要素はそれ以上のすべてを数えます。
+   *
+   * @return スループットのヒストグラム
+   */
+  long[] getThroughputHistogram();
+}
@@ -0,0 +1,301 @@
+package party.sprz.wa2.pack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * このクラスは、エントリを名前の辞書順に並べた、変更できない索引です。
+ *
+ * 完全一致、前方一致、範囲及びglobパターンによる検索を、二分探索で見つけた連続した範囲を返すことで、
+ * エントリの数をn、結果の数をkとしてO(log n + k)で行います。名前は{@link String#compareTo(String)}の順序で比較し、
+ * 大文字と小文字を区別します。同じ名前の要素は、索引を作成したときの順序を保ちます。
+ *
+ * 要素の型は名前を取り出す関数で決まるため、複数のPackファイルにまたがるビューでは、Packファイルとエントリの組を要素にして索引を作成できます。
+ *
+ * @param <T> 索引する要素の型
+ * @author Nan
+ *
+ * @see PackFile#getNameIndex()
+ */
+public class PackNameIndex<T> {
+  private final Object[] items;
+  private final String[] names;
+  // 名前を逆順にした文字列の順序で並べた、itemsの添字。接尾辞で絞り込めるglobパターンの検索で、初めて必要になったときに作成する
+  private volatile Suffixes suffixes;
+
+  /**
+   * 要素の集まりから新しい索引を作成します。
+   *
+   * @param items 索引する要素
+   * @param nameOf 要素の名前を返す関数
+   */
+  public PackNameIndex(Collection<? extends T> items, Function<? super T, String> nameOf) {
+    Objects.requireNonNull(nameOf);
+    Object[] a = items.toArray();
+    String[] n = new String[a.length];
+    Integer[] order = new Integer[a.length];
+    for (int i = 0; i < a.length; i++) {
+      @SuppressWarnings("unchecked")
+      T t = (T) a[i];
+      n[i] = Objects.requireNonNull(nameOf.apply(t));
+      order[i] = i;
+    }
+    // 安定なソートのため、同じ名前の要素は元の順序のまま残る
+    Arrays.sort(order, Comparator.comparing(i -> n[i]));
+    this.items = new Object[a.length];
+    this.names = new String[a.length];
+    for (int i = 0; i < a.length; i++) {
+      this.items[i] = a[order[i]];
+      this.names[i] = n[order[i]];
+    }
+  }
+
+  /**
+   * 索引された要素の数を返します。
+   *
+   * @return 要素の数
+   */
+  public int size() {
+    return items.length;
+  }
+
+  /**
+   * 指定された名前の要素を返します。同じ名前の要素が複数ある場合は、索引を作成したときに最初にあったものを返します。
+   *
+   * @param name 名前
+   * @return 要素。見つからない場合はnull
+   */
+  public T get(String name) {
+    int i = lowerBound(name);
+    return i < names.length && names[i].equals(name) ? item(i) : null;
+  }
+
+  /**
+   * 指定された名前のすべての要素を、索引を作成したときの順序で返します。
+   *
+   * @param name 名前
+   * @return 要素の変更できないリスト
+   */
+  public List<T> getAll(String name) {
+    int from = lowerBound(name);
+    int to = from;
+    while (to < names.length && names[to].equals(name)) {
+      to++;
+    }
+    return slice(from, to);
+  }
+
+  /**
+   * 名前が指定された文字列で始まる要素を、名前の順序で返します。
+   *
+   * @param prefix 名前の先頭の文字列。空の文字列の場合はすべての要素を返す
+   * @return 要素の変更できないリスト
+   */
+  public List<T> prefix(String prefix) {
+    int from = lowerBound(prefix);
+    return slice(from, prefixEnd(names, from, prefix));
+  }
+
+  /**
+   * 名前がfrom以上でto未満の要素を、名前の順序で返します。
+   *
+   * @param from 範囲の最初の名前(この名前を含む)。nullの場合は最初の要素から
+   * @param to 範囲の最後の名前(この名前を含まない)。nullの場合は最後の要素まで
+   * @return 要素の変更できないリスト
+   */
+  public List<T> range(String from, String to) {
+    int lo = from == null ? 0 : lowerBound(from);
+    int hi = to == null ? names.length : lowerBound(to);
+    return slice(lo, Math.max(lo, hi));
+  }
+
+  /**
+   * 名前がglobパターンに一致する要素を、名前の順序で返します。
+   *
+   * パターンでは、'*'が0文字以上の任意の文字列に、'?'が任意の1文字に一致し、その他の文字はその文字自身に一致します。
+   * 最初のワイルドカードより前の部分か、最後のワイルドカードより後の部分の長い方で候補を絞り込んでから、残りの部分を照合します。
+   * そのため、"ev_*"や"*.bmp"のようなパターンでは、一致しない要素を調べません。
+   *
+   * @param pattern globパターン
+   * @return 要素の変更できないリスト
+   */
+  public List<T> glob(String pattern) {
+    int first = firstWildcard(pattern);
+    if (first == -1) {
+      return getAll(pattern);
+    }
+    int last = lastWildcard(pattern);
+    String head = pattern.substring(0, first);
+    String tail = pattern.substring(last + 1);
+
+    List<T> result = new ArrayList<>();
+    if (head.length() >= tail.length()) {
+      int from = lowerBound(head);
+      int to = prefixEnd(names, from, head);
+      for (int i = from; i < to; i++) {
+        if (matches(pattern, names[i])) {
+          result.add(item(i));
+        }
+      }
+      return Collections.unmodifiableList(result);
+    }
+
+    Suffixes s = suffixes();
+    String reversed = reverse(tail);
+    int from = lowerBound(s.reversed, reversed);
+    int to = prefixEnd(s.reversed, from, reversed);
+    int[] hits = new int[to - from];
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      int j = s.order[i];
+      if (matches(pattern, names[j])) {
+        hits[n++] = j;
+      }
+    }
+    // 結果は名前の順序で返す
+    Arrays.sort(hits, 0, n);
+    for (int i = 0; i < n; i++) {
+      result.add(item(hits[i]));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * 名前がglobパターンに一致するかどうかを返します。パターンの書式は{@link #glob(String)}と同じです。
+   *
+   * @param pattern globパターン
+   * @param name 名前
+   * @return 一致する場合はtrue
+   */
+  public static boolean matches(String pattern, String name) {
+    int p = 0;
+    int n = 0;
+    // 最後に現れた'*'の位置と、それに対応させた名前の位置。一致しなくなったら、'*'に1文字多く対応させてやり直す
+    int star = -1;
+    int mark = 0;
+    while (n < name.length()) {
+      if (p < pattern.length()
+          && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+        p++;
+        n++;
+      } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+        star = p++;
+        mark = n;
+      } else if (star != -1) {
+        p = star + 1;
+        n = ++mark;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length() && pattern.charAt(p) == '*') {
+      p++;
+    }
+    return p == pattern.length();
+  }
+
+  @SuppressWarnings("unchecked")
+  private T item(int i) {
+    return (T) items[i];
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<T> slice(int from, int to) {
+    return Collections.unmodifiableList((List<T>) Arrays.asList(items).subList(from, to));
+  }
+
+  private int lowerBound(String key) {
+    return lowerBound(names, key);
+  }
+
+  // 名前がkey以上になる最初の位置
+  private static int lowerBound(String[] sorted, String key) {
+    int lo = 0;
+    int hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid].compareTo(key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // from以降で、prefixで始まらない最初の位置。fromからprefixで始まる名前が連続していることを利用する
+  private static int prefixEnd(String[] sorted, int from, String prefix) {
+    int lo = from;
+    int hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid].startsWith(prefix)) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static int firstWildcard(String pattern) {
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '*' || c == '?') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int lastWildcard(String pattern) {
+    for (int i = pattern.length() - 1; 0 <= i; i--) {
+      char c = pattern.charAt(i);
+      if (c == '*' || c == '?') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String reverse(String s) {
+    return new StringBuilder(s).reverse().toString();
+  }
+
+  // 複数のスレッドが同時に作成しても、内容は同じになる
+  private Suffixes suffixes() {
+    Suffixes s = suffixes;
+    if (s == null) {
+      s = new Suffixes(names);
+      suffixes = s;
+    }
+    return s;
+  }
+
+  private static final class Suffixes {
+    final String[] reversed;
+    final int[] order;
+
+    Suffixes(String[] names) {
+      Integer[] o = new Integer[names.length];
+      String[] r = new String[names.length];
+      for (int i = 0; i < names.length; i++) {
+        o[i] = i;
+        r[i] = reverse(names[i]);
+      }
+      Arrays.sort(o, Comparator.comparing(i -> r[i]));
+      this.reversed = new String[names.length];
+      this.order = new int[names.length];
+      for (int i = 0; i < names.length; i++) {
+        this.reversed[i] = r[o[i]];
+        this.order[i] = o[i];
+      }
+    }
+  }
+}
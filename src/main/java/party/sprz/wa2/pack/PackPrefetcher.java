@@ -0,0 +1,328 @@
+package party.sprz.wa2.pack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * このクラスは、PackFileのエントリへのアクセスから後続のエントリを学習し、次に読み込まれる可能性が高いエントリを先読みします。
+ *
+ * 同じスレッドでエントリAのあとにエントリBが読み込まれた回数を数え、Aが読み込まれたときに一定以上の確率で続くエントリをバックグラウンドのスレッドで圧縮解除し、
+ * 上限付きのバッファに保持します。バッファに収まらない大きなエントリは、圧縮されたデータ領域をページ・キャッシュに読み込むだけにとどめます。
+ * 先読みしたエントリが読み込まれた場合、PackFileは圧縮解除を行わずにバッファの内容を返します。
+ *
+ * @author Nan
+ *
+ * @see PackFile#setPrefetcher(PackPrefetcher)
+ */
+public class PackPrefetcher implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(PackPrefetcher.class);
+
+  // 1つのエントリについて覚えておく後続エントリの最大数
+  private static final int MAX_SUCCESSORS = 8;
+
+  private final int maxPredictions;
+  private final double minProbability;
+  private final long bufferSize;
+  private final ExecutorService executor;
+
+  private PackFile pack;
+  private volatile boolean closed;
+
+  // 以下はlockで保護される。仮想スレッドから呼び出されてもキャリア・スレッドを固定しないようにモニターは使わない
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<PackEntry, Map<PackEntry, Integer>> successors = new HashMap<>();
+  private final Map<PackEntry, Integer> totals = new HashMap<>();
+  private final LinkedHashMap<PackEntry, byte[]> buffer = new LinkedHashMap<>();
+  private final Set<PackEntry> pending = new HashSet<>();
+  private long bufferedBytes;
+  // 複数のスレッドのアクセスが混ざって無関係な後続エントリを学習しないように、直前のアクセスはスレッドごとに保持する
+  private final ThreadLocal<PackEntry> last = new ThreadLocal<>();
+
+  private final LongAdder accesses = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder prefetched = new LongAdder();
+  private final LongAdder loaded = new LongAdder();
+  private final LongAdder wasted = new LongAdder();
+  private final LongAdder wastedBytes = new LongAdder();
+
+  /**
+   * 1回のアクセスにつき最大2エントリを、25%以上の確率で続く場合に先読みする、8MBのバッファを持つ新しいプリフェッチャを作成します。
+   */
+  public PackPrefetcher() {
+    this(2, 0.25, 8 * 1024 * 1024);
+  }
+
+  /**
+   * 新しいプリフェッチャを作成します。
+   *
+   * @param maxPredictions 1回のアクセスにつき先読みするエントリの最大数
+   * @param minProbability 先読みする後続エントリの最小の出現確率
+   * @param bufferSize 先読みした内容を保持するバッファの最大バイト数
+   * @throws IllegalArgumentException 引数が範囲外の場合
+   */
+  public PackPrefetcher(int maxPredictions, double minProbability, long bufferSize) {
+    if (maxPredictions < 0 || minProbability < 0 || minProbability > 1 || bufferSize < 0) {
+      throw new IllegalArgumentException("invalid prefetch parameters");
+    }
+    this.maxPredictions = maxPredictions;
+    this.minProbability = minProbability;
+    this.bufferSize = bufferSize;
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "PackPrefetcher");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  void attach(PackFile pack) {
+    lock.lock();
+    try {
+      if (this.pack != null) {
+        throw new IllegalStateException("PackPrefetcher already attached");
+      }
+      this.pack = pack;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * エントリへのアクセスを記録し、後続のエントリの先読みを開始します。
+   *
+   * @param e アクセスされたエントリ
+   * @return 先読みされていた場合はエントリの内容。そうでない場合はnull
+   */
+  byte[] accessed(PackEntry e) {
+    accesses.increment();
+    byte[] data;
+    List<PackEntry> scheduled = new ArrayList<>(maxPredictions);
+    PackEntry previous = last.get();
+    last.set(e);
+    lock.lock();
+    try {
+      if (previous != null && previous != e) {
+        learn(previous, e);
+      }
+
+      data = buffer.remove(e);
+      if (data != null) {
+        bufferedBytes -= data.length;
+        hits.increment();
+      }
+
+      if (!closed) {
+        for (PackEntry next : predict(e)) {
+          if (next != e && !buffer.containsKey(next) && pending.add(next)) {
+            scheduled.add(next);
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    // 多数のスレッドから呼び出されるため、タスクの投入はロックの外で行う
+    for (PackEntry next : scheduled) {
+      try {
+        executor.execute(() -> prefetch(next));
+      } catch (RejectedExecutionException ex) {
+        lock.lock();
+        try {
+          pending.remove(next);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    return data;
+  }
+
+  private void learn(PackEntry from, PackEntry to) {
+    Map<PackEntry, Integer> counts = successors.computeIfAbsent(from, k -> new HashMap<>());
+    if (!counts.containsKey(to) && counts.size() >= MAX_SUCCESSORS) {
+      PackEntry min = null;
+      for (Map.Entry<PackEntry, Integer> c : counts.entrySet()) {
+        if (min == null || c.getValue() < counts.get(min)) {
+          min = c.getKey();
+        }
+      }
+      totals.merge(from, -counts.remove(min), Integer::sum);
+    }
+    counts.merge(to, 1, Integer::sum);
+    totals.merge(from, 1, Integer::sum);
+  }
+
+  private List<PackEntry> predict(PackEntry e) {
+    List<PackEntry> result = new ArrayList<>(maxPredictions);
+    Map<PackEntry, Integer> counts = successors.get(e);
+    if (counts == null || maxPredictions == 0) {
+      return result;
+    }
+    int total = totals.get(e);
+    List<Map.Entry<PackEntry, Integer>> sorted = new ArrayList<>(counts.entrySet());
+    sorted.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+    for (Map.Entry<PackEntry, Integer> c : sorted) {
+      if (result.size() >= maxPredictions || c.getValue() < total * minProbability) {
+        break;
+      }
+      result.add(c.getKey());
+    }
+    return result;
+  }
+
+  private void prefetch(PackEntry e) {
+    try {
+      if (closed) {
+        return;
+      }
+      if (e.getSize() > bufferSize / 4) {
+        pack.load(e);
+        loaded.increment();
+        return;
+      }
+
+      byte[] data = pack.decode(e);
+      lock.lock();
+      try {
+        buffer.put(e, data);
+        bufferedBytes += data.length;
+        Iterator<byte[]> it = buffer.values().iterator();
+        while (bufferedBytes > bufferSize && it.hasNext()) {
+          byte[] evicted = it.next();
+          it.remove();
+          bufferedBytes -= evicted.length;
+          wasted.increment();
+          wastedBytes.add(evicted.length);
+        }
+      } finally {
+        lock.unlock();
+      }
+      prefetched.increment();
+    } catch (IOException | RuntimeException ex) {
+      LOG.debug("failed to prefetch {}", e.getName(), ex);
+    } finally {
+      lock.lock();
+      try {
+        pending.remove(e);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * 記録したアクセスの数を返します。
+   *
+   * @return アクセスの数
+   */
+  public long getAccesses() {
+    return accesses.sum();
+  }
+
+  /**
+   * 先読みした内容が使われたアクセスの数を返します。
+   *
+   * @return 先読みのヒット数
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * 先読みして圧縮解除したエントリの数を返します。
+   *
+   * @return 先読みで圧縮解除したエントリの数
+   */
+  public long getPrefetched() {
+    return prefetched.sum();
+  }
+
+  /**
+   * 圧縮解除せずに、データ領域をページ・キャッシュに読み込んだエントリの数を返します。
+   *
+   * @return データ領域のみを読み込んだエントリの数
+   */
+  public long getLoaded() {
+    return loaded.sum();
+  }
+
+  /**
+   * 先読みしたものの、使われないままバッファから追い出されたエントリの数を返します。
+   *
+   * @return 無駄になった先読みの数
+   */
+  public long getWasted() {
+    return wasted.sum();
+  }
+
+  /**
+   * 先読みしたものの、使われないままバッファから追い出されたバイトの総数を返します。
+   *
+   * @return 無駄になった先読みのバイト数
+   */
+  public long getWastedBytes() {
+    return wastedBytes.sum();
+  }
+
+  /**
+   * アクセスのうち、先読みした内容が使われた割合を返します。
+   *
+   * @return 先読みのヒット率。アクセスがない場合は0
+   */
+  public double getHitRate() {
+    long a = accesses.sum();
+    return a == 0 ? 0 : (double) hits.sum() / a;
+  }
+
+  /**
+   * 圧縮解除して先読みしたエントリのうち、使われた割合を返します。
+   *
+   * @return 先読みの精度。先読みしていない場合は0
+   */
+  public double getAccuracy() {
+    long p = prefetched.sum();
+    return p == 0 ? 0 : (double) hits.sum() / p;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "accesses=%d, hits=%d (%.1f%%), prefetched=%d (accuracy %.1f%%), loaded=%d, wasted=%d (%d bytes)",
+        getAccesses(), getHits(), getHitRate() * 100, getPrefetched(), getAccuracy() * 100,
+        getLoaded(), getWasted(), getWastedBytes());
+  }
+
+  /**
+   * 先読みを停止し、バッファを破棄します。
+   *
+   * @see java.io.Closeable#close()
+   */
+  @Override
+  public void close() {
+    closed = true;
+    executor.shutdownNow();
+    lock.lock();
+    try {
+      buffer.clear();
+      bufferedBytes = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,453 @@
+package party.sprz.wa2.pack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * このクラスは、Packファイルのエントリのテキストに対する全文検索のための索引を実装します。
+ *
+ * エントリの内容をPACK_ENCODINGでデコードし、連続する2文字(バイグラム)ごとに出現位置を記録します。検索語に含まれるすべてのバイグラムが
+ * 連続した位置に出現する箇所を探すため、検索時にエントリを圧縮解除する必要はありません。索引はファイルに保存でき、updateメソッドは
+ * 圧縮されたデータのハッシュが変わったエントリだけを索引し直します。
+ *
+ * @author Nan
+ *
+ */
+public class PackTextIndex implements PackConstants {
+  private static final int MAGIC = 0x57544958; // "WTIX"
+  private static final int VERSION = 1;
+  private static final String HASH_ALGORITHM = "SHA-256";
+  // テキストの最後の文字に続く仮想的な文字。1文字の検索語を、その文字で始まるバイグラムとして扱うために使う
+  private static final char END = '\uFFFF';
+
+  // 以下はthisで保護される
+  private final List<Doc> docs = new ArrayList<>();
+  private final Map<Integer, int[]> postings = new HashMap<>();
+
+  /**
+   * 空の索引を作成します。
+   */
+  public PackTextIndex() {
+  }
+
+  /**
+   * Packファイルのすべてのエントリを索引します。
+   *
+   * @param pack Packファイル
+   * @return 作成された索引
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public static PackTextIndex build(PackFile pack) throws IOException {
+    PackTextIndex index = new PackTextIndex();
+    index.update(pack);
+    return index;
+  }
+
+  /**
+   * 索引をPackファイルの現在の内容に合わせて更新します。
+   *
+   * @param pack Packファイル
+   * @return 索引し直したエントリの数
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   * @see #update(PackFile, Predicate)
+   */
+  public int update(PackFile pack) throws IOException {
+    return update(pack, e -> true);
+  }
+
+  /**
+   * 索引をPackファイルの現在の内容に合わせて更新します。
+   *
+   * 条件を満たすエントリのうち、新しく追加されたものと、圧縮時のサイズか圧縮されたデータのハッシュが前回と異なるものだけを
+   * 圧縮解除して索引し直します。オフセットだけが変わったエントリは索引し直しません。Packファイルからなくなったエントリや条件を満たさなくなったエントリは、索引から削除されます。
+   * 圧縮解除とデコードは複数のスレッドで並列に行われます。
+   *
+   * @param pack Packファイル
+   * @param filter 索引するエントリの条件
+   * @return 索引し直したエントリの数
+   * @throws PackException Pack形式エラーが発生した場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public synchronized int update(PackFile pack, Predicate<? super PackEntry> filter)
+      throws IOException {
+    Objects.requireNonNull(filter);
+    PackEntry[] entries = pack.stream().filter(filter).toArray(PackEntry[]::new);
+    Map<String, Doc> old = new HashMap<>();
+    for (Doc d : docs) {
+      old.put(d.name, d);
+    }
+
+    Doc[] result = new Doc[entries.length];
+    AtomicInteger reindexed = new AtomicInteger();
+    try {
+      IntStream.range(0, entries.length).parallel().forEach(i -> {
+        try {
+          PackEntry e = entries[i];
+          byte[] hash = hash(pack, e);
+          Doc d = old.get(e.getName());
+          if (d == null || d.compressedSize != e.getCompressedSize()
+              || !Arrays.equals(d.hash, hash)) {
+            d = Doc.of(e, hash, new String(pack.decode(e), PACK_ENCODING));
+            reindexed.incrementAndGet();
+          } else if (d.offset != e.getOffset()) {
+            d = d.moveTo(e.getOffset());
+          }
+          result[i] = d;
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    docs.clear();
+    docs.addAll(Arrays.asList(result));
+    rebuildPostings();
+    return reindexed.get();
+  }
+
+  private static byte[] hash(PackFile pack, PackEntry e) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+      pack.digest(e, md);
+      return md.digest();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // バイグラムごとに、そのバイグラムを含む文書の番号を昇順に並べる
+  private void rebuildPostings() {
+    Map<Integer, List<Integer>> lists = new HashMap<>();
+    for (int i = 0; i < docs.size(); i++) {
+      for (int key : docs.get(i).keys) {
+        lists.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+      }
+    }
+    postings.clear();
+    for (Map.Entry<Integer, List<Integer>> l : lists.entrySet()) {
+      postings.put(l.getKey(), l.getValue().stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  /**
+   * 索引されているエントリの数を返します。
+   *
+   * @return 索引されているエントリの数
+   */
+  public synchronized int size() {
+    return docs.size();
+  }
+
+  /**
+   * 検索語が出現する箇所を返します。
+   *
+   * 結果は索引したエントリの順序で並び、同じエントリ内では出現位置の昇順で並びます。
+   *
+   * @param query 検索語
+   * @return 検索語が出現する箇所のリスト。見つからない場合は空のリスト
+   */
+  public synchronized List<Hit> search(String query) {
+    List<Hit> hits = new ArrayList<>();
+    if (query.isEmpty()) {
+      return hits;
+    }
+    if (query.length() == 1) {
+      char c = query.charAt(0);
+      for (Doc d : docs) {
+        for (int p : d.positionsStartingWith(c)) {
+          hits.add(new Hit(d.name, p));
+        }
+      }
+      return hits;
+    }
+
+    int n = query.length() - 1;
+    int[] keys = new int[n];
+    int[] rarest = null;
+    for (int i = 0; i < n; i++) {
+      keys[i] = key(query.charAt(i), query.charAt(i + 1));
+      int[] docIds = postings.get(keys[i]);
+      if (docIds == null) {
+        return hits;
+      }
+      if (rarest == null || docIds.length < rarest.length) {
+        rarest = docIds;
+      }
+    }
+
+    for (int docId : rarest) {
+      Doc d = docs.get(docId);
+      // エントリ内で最も出現回数の少ないバイグラムを起点に、ほかのバイグラムが対応する位置にあるかを調べる
+      int[][] positions = new int[n][];
+      int anchor = -1;
+      for (int i = 0; i < n; i++) {
+        positions[i] = d.positions(keys[i]);
+        if (positions[i] == null) {
+          anchor = -1;
+          break;
+        }
+        if (anchor == -1 || positions[i].length < positions[anchor].length) {
+          anchor = i;
+        }
+      }
+      if (anchor == -1) {
+        continue;
+      }
+      candidates:
+      for (int q : positions[anchor]) {
+        int p = q - anchor;
+        for (int i = 0; i < n; i++) {
+          if (i != anchor && Arrays.binarySearch(positions[i], p + i) < 0) {
+            continue candidates;
+          }
+        }
+        hits.add(new Hit(d.name, p));
+      }
+    }
+    return hits;
+  }
+
+  private static int key(char c1, char c2) {
+    return c1 << 16 | c2;
+  }
+
+  /**
+   * 索引をファイルに書き込みます。書込みは一時ファイルを経由して行われるため、書込み中に失敗しても既存のファイルは壊れません。
+   *
+   * @param path 書込み先のファイル
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public synchronized void write(Path path) throws IOException {
+    Path dir = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(dir, path.getFileName().toString(), ".part");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(docs.size());
+        for (Doc d : docs) {
+          d.write(out);
+        }
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * writeメソッドで書き込まれた索引を読み込みます。
+   *
+   * @param path 読込み元のファイル
+   * @return 読み込まれた索引
+   * @throws PackException 索引の形式が正しくない場合
+   * @throws IOException 入出力エラーが発生した場合
+   */
+  public static PackTextIndex read(Path path) throws IOException {
+    PackTextIndex index = new PackTextIndex();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new PackException("Not a text index: " + path);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        index.docs.add(Doc.read(in));
+      }
+    }
+    index.rebuildPostings();
+    return index;
+  }
+
+  // 1つのエントリの前方索引。バイグラムを昇順に並べ、それぞれの出現位置を昇順に保持する
+  private static class Doc {
+    final String name;
+    final long offset;
+    final long compressedSize;
+    final byte[] hash;
+    final int[] keys;
+    final int[][] positions;
+
+    Doc(String name, long offset, long compressedSize, byte[] hash, int[] keys,
+        int[][] positions) {
+      this.name = name;
+      this.offset = offset;
+      this.compressedSize = compressedSize;
+      this.hash = hash;
+      this.keys = keys;
+      this.positions = positions;
+    }
+
+    static Doc of(PackEntry e, byte[] hash, String text) {
+      Map<Integer, int[]> map = new HashMap<>();
+      for (int i = 0; i < text.length(); i++) {
+        char next = i + 1 < text.length() ? text.charAt(i + 1) : END;
+        int[] list = map.computeIfAbsent(key(text.charAt(i), next), k -> new int[5]);
+        // list[0]は要素数
+        if (list[0] + 1 == list.length) {
+          list = Arrays.copyOf(list, list.length * 2);
+          map.put(key(text.charAt(i), next), list);
+        }
+        list[++list[0]] = i;
+      }
+
+      int[] keys = map.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+      int[][] positions = new int[keys.length][];
+      for (int i = 0; i < keys.length; i++) {
+        int[] list = map.get(keys[i]);
+        positions[i] = Arrays.copyOfRange(list, 1, list[0] + 1);
+      }
+      return new Doc(e.getName(), e.getOffset(), e.getCompressedSize(), hash, keys, positions);
+    }
+
+    Doc moveTo(long newOffset) {
+      return new Doc(name, newOffset, compressedSize, hash, keys, positions);
+    }
+
+    int[] positions(int key) {
+      int i = Arrays.binarySearch(keys, key);
+      return i < 0 ? null : positions[i];
+    }
+
+    int[] positionsStartingWith(char c) {
+      int from = Arrays.binarySearch(keys, key(c, '\0'));
+      from = from < 0 ? -from - 1 : from;
+      List<int[]> lists = new ArrayList<>();
+      int total = 0;
+      for (int i = from; i < keys.length && keys[i] >>> 16 == c; i++) {
+        lists.add(positions[i]);
+        total += positions[i].length;
+      }
+      int[] result = new int[total];
+      int n = 0;
+      for (int[] l : lists) {
+        System.arraycopy(l, 0, result, n, l.length);
+        n += l.length;
+      }
+      Arrays.sort(result);
+      return result;
+    }
+
+    // キーと位置は直前の値との差分を可変長整数で書き込む
+    void write(DataOutputStream out) throws IOException {
+      out.writeUTF(name);
+      out.writeLong(offset);
+      out.writeLong(compressedSize);
+      out.writeByte(hash.length);
+      out.write(hash);
+      writeVarInt(out, keys.length);
+      int prevKey = 0;
+      for (int i = 0; i < keys.length; i++) {
+        writeVarInt(out, keys[i] - prevKey);
+        prevKey = keys[i];
+        writeVarInt(out, positions[i].length);
+        int prev = 0;
+        for (int p : positions[i]) {
+          writeVarInt(out, p - prev);
+          prev = p;
+        }
+      }
+    }
+
+    static Doc read(DataInputStream in) throws IOException {
+      String name = in.readUTF();
+      long offset = in.readLong();
+      long compressedSize = in.readLong();
+      byte[] hash = new byte[in.readUnsignedByte()];
+      in.readFully(hash);
+      int[] keys = new int[readVarInt(in)];
+      int[][] positions = new int[keys.length][];
+      int prevKey = 0;
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = prevKey + readVarInt(in);
+        prevKey = keys[i];
+        positions[i] = new int[readVarInt(in)];
+        int prev = 0;
+        for (int j = 0; j < positions[i].length; j++) {
+          positions[i][j] = prev + readVarInt(in);
+          prev = positions[i][j];
+        }
+      }
+      return new Doc(name, offset, compressedSize, hash, keys, positions);
+    }
+  }
+
+  private static void writeVarInt(DataOutputStream out, int v) throws IOException {
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return v;
+      }
+    }
+    throw new PackException("Malformed text index");
+  }
+
+  /**
+   * このクラスは、検索語が出現した箇所を表します。
+   */
+  public static class Hit {
+    private final String name;
+    private final int offset;
+
+    Hit(String name, int offset) {
+      this.name = name;
+      this.offset = offset;
+    }
+
+    /**
+     * 検索語が出現したエントリの名前を返します。
+     *
+     * @return エントリの名前
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * デコードしたテキストの先頭からの、検索語の出現位置(文字数)を返します。
+     *
+     * @return 出現位置
+     */
+    public int getOffset() {
+      return offset;
+    }
+
+    @Override
+    public String toString() {
+      return name + ":" + offset;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package party.sprz.wa2.pack;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * 以前のLZSSDecompresserの圧縮解除のループです。フラグをBitSetに展開し、1バイトずつ圧縮解除します。
+ *
+ * 現在のLZSSDecompresserの結果と速度を比べる基準として、テストでのみ使用します。
+ *
+ * @author Nan
+ *
+ */
+final class BitSetDecoder implements PackConstants {
+  private static final int WINDOW_MASK = LZSSDecompresser.SLIDING_WINDOW_SIZE - 1;
+
+  private final ByteBuffer dataBuf;
+  private final byte[] dicTable = new byte[LZSSDecompresser.SLIDING_WINDOW_SIZE];
+  private int currDicPos =
+      LZSSDecompresser.SLIDING_WINDOW_SIZE - LZSSDecompresser.MAXIMUM_REFERENCE_LENGTH;
+  private int wDataRemaining;
+  private final BitSet flag = new BitSet(BLOCKDATA_SIZE);
+  private int blockDataRemaining = 0;
+  private int referenceLength = 0;
+  private int referenceRemaining = 0;
+  private final byte[] referenceCache = new byte[LZSSDecompresser.MAXIMUM_REFERENCE_LENGTH];
+  // これまでに読み込んだ、ヘッダを含む圧縮されたバイトの総数
+  int bytesRead = DATA_HEADER_SIZE;
+
+  BitSetDecoder(byte[] b) {
+    this.dataBuf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+    dataBuf.getInt();
+    this.wDataRemaining = dataBuf.getInt();
+  }
+
+  int decompress(byte[] b, int off, int len) {
+    if (wDataRemaining <= 0) {
+      return -1;
+    }
+    len = Math.min(len, wDataRemaining);
+    int i = 0;
+    for (; i < len; i++) {
+      int c = decompressByte();
+      if (c == -1) {
+        break;
+      }
+      b[off + i] = (byte) c;
+    }
+    if (i == 0) {
+      return -1;
+    }
+    wDataRemaining -= i;
+    return i;
+  }
+
+  private int decompressByte() {
+    if (0 < referenceRemaining) {
+      return Byte.toUnsignedInt(referenceCache[referenceLength - referenceRemaining--]);
+    }
+    if (blockDataRemaining == 0) {
+      int r = readCompressedByte();
+      if (r == -1) {
+        return -1;
+      }
+      for (int i = 0; i < BLOCKDATA_SIZE; i++) {
+        flag.set(i, ((r >>> i) & 1) == 1);
+      }
+      blockDataRemaining = BLOCKDATA_SIZE;
+    }
+    int blockDataIndex = BLOCKDATA_SIZE - blockDataRemaining--;
+    int r1 = readCompressedByte();
+    if (r1 == -1) {
+      return -1;
+    }
+    if (flag.get(blockDataIndex)) {
+      dicTable[currDicPos] = (byte) r1;
+      currDicPos = (currDicPos + 1) & WINDOW_MASK;
+      return r1;
+    }
+    int r2 = readCompressedByte();
+    if (r2 == -1) {
+      return -1;
+    }
+    int position = r1 + (((r2 >>> 4) & 0xF) << 8);
+    referenceLength = (r2 & 0xF) + 3;
+    for (int i = 0; i < referenceLength; i++) {
+      byte d = dicTable[(position + i) & WINDOW_MASK];
+      dicTable[currDicPos] = d;
+      currDicPos = (currDicPos + 1) & WINDOW_MASK;
+      referenceCache[i] = d;
+    }
+    referenceRemaining = referenceLength - 1;
+    return Byte.toUnsignedInt(referenceCache[0]);
+  }
+
+  private int readCompressedByte() {
+    if (!dataBuf.hasRemaining()) {
+      return -1;
+    }
+    bytesRead++;
+    return Byte.toUnsignedInt(dataBuf.get());
+  }
+}
@@ -0,0 +1,281 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * LZSSDecompresserの圧縮解除の結果が、以前のBitSetを使ったデコーダと1バイト単位で一致することを確認します。
+ *
+ * 8リテラルのグループの一括複写や参照の一括複写は、出力バッファの残り、窓の端(0xFEE及び0x1000)、参照元と書込み位置の重なりによって
+ * 使われるかどうかが変わるため、それらの境界をまたぐストリームを、様々な読込みサイズと入出力のバッファの種類で圧縮解除します。
+ *
+ * @author Nan
+ *
+ */
+public class LZSSDecompresserTest implements PackConstants {
+  private static final int WINDOW_MASK = LZSSDecompresser.SLIDING_WINDOW_SIZE - 1;
+  private static final int INITIAL_POSITION =
+      LZSSDecompresser.SLIDING_WINDOW_SIZE - LZSSDecompresser.MAXIMUM_REFERENCE_LENGTH;
+
+  @Test
+  public void randomStreamsMatchBaseline() {
+    Random r = new Random(41);
+    for (int i = 0; i < 400; i++) {
+      StreamBuilder s = new StreamBuilder();
+      int tokens = 1 + r.nextInt(i < 200 ? 64 : 4000);
+      int literalPercent = r.nextInt(101);
+      for (int t = 0; t < tokens; t++) {
+        if (r.nextInt(100) < literalPercent) {
+          s.literal(r.nextInt(4) == 0 ? 'a' : r.nextInt(256));
+        } else {
+          s.reference(randomPosition(r, s), 3 + r.nextInt(16));
+        }
+      }
+      // 最後の参照が元のサイズを超えるストリームも含める
+      int size = s.size() - (r.nextInt(4) == 0 ? r.nextInt(Math.min(s.size(), 18) + 1) : 0);
+      assertMatchesBaseline("stream " + i, s.build(size), r);
+    }
+  }
+
+  @Test
+  public void referencesAroundWindowEdgeMatchBaseline() {
+    Random r = new Random(4096);
+    for (int lead = 0; lead < 24; lead++) {
+      StreamBuilder s = new StreamBuilder();
+      for (int i = 0; i < lead; i++) {
+        s.literal(i);
+      }
+      for (int i = 0; i < 1500; i++) {
+        int len = 3 + i % 16;
+        switch (i % 4) {
+          case 0:
+            // 窓の初期位置0xFEEの前後を参照する
+            s.reference((INITIAL_POSITION - 20 + i % 41) & WINDOW_MASK, len);
+            break;
+          case 1:
+            // 窓の末尾0xFFFから先頭0x000へまたがる位置を参照する
+            s.reference((0x1000 - 18 + i % 37) & WINDOW_MASK, len);
+            break;
+          case 2:
+            // 書込み位置の直前を参照し、参照元と書込み先が重なるようにする
+            s.reference((s.dictionaryPosition() - 1 - i % 20) & WINDOW_MASK, len);
+            break;
+          default:
+            s.literal(i);
+            break;
+        }
+      }
+      assertMatchesBaseline("lead " + lead, s.build(s.size()), r);
+    }
+  }
+
+  @Test
+  public void literalGroupsMatchBaseline() {
+    Random r = new Random(8);
+    for (int lead = 0; lead < 16; lead++) {
+      StreamBuilder s = new StreamBuilder();
+      // 先頭の参照で、8リテラルのグループがフラグの境界と窓の端に対してずれた位置から始まるようにする
+      for (int i = 0; i < lead; i++) {
+        s.reference(r.nextInt(0x1000), 3 + r.nextInt(16));
+      }
+      for (int i = 0; i < 5000; i++) {
+        s.literal(r.nextInt(256));
+      }
+      assertMatchesBaseline("lead " + lead, s.build(s.size()), r);
+    }
+  }
+
+  @Test
+  public void truncatedStreamsMatchBaseline() {
+    Random r = new Random(1000);
+    StreamBuilder s = new StreamBuilder();
+    for (int t = 0; t < 300; t++) {
+      if (r.nextBoolean()) {
+        s.literal(r.nextInt(256));
+      } else {
+        s.reference(randomPosition(r, s), 3 + r.nextInt(16));
+      }
+    }
+    byte[] full = s.build(s.size());
+    for (int len = DATA_HEADER_SIZE; len < full.length; len++) {
+      byte[] cut = Arrays.copyOf(full, len);
+      assertMatchesBaseline("length " + len, cut, r);
+
+      LZSSDecompresser d = new LZSSDecompresser(cut);
+      while (d.decompress(new byte[64]) != -1) {
+        // 途切れるまで読み込む
+      }
+      try {
+        d.checkIntegrity();
+        fail("truncated stream of length " + len + " passed the integrity check");
+      } catch (PackException expected) {
+        // 元のサイズに達する前に途切れている
+      }
+    }
+  }
+
+  @Test
+  public void fullStreamPassesIntegrityCheck() throws PackException {
+    byte[] in = PackFixtures.encode(PackFixtures.text(new Random(2), 100000));
+    LZSSDecompresser d = new LZSSDecompresser(in);
+    while (d.decompress(new byte[4096]) != -1) {
+      // 最後まで読み込む
+    }
+    d.checkIntegrity();
+    assertEquals(d.getSize(), d.getTotalOut());
+  }
+
+  private static int randomPosition(Random r, StreamBuilder s) {
+    switch (r.nextInt(4)) {
+      case 0:
+        return (INITIAL_POSITION + r.nextInt(64) - 32) & WINDOW_MASK;
+      case 1:
+        return (0x1000 + r.nextInt(64) - 32) & WINDOW_MASK;
+      case 2:
+        return (s.dictionaryPosition() - 1 - r.nextInt(24)) & WINDOW_MASK;
+      default:
+        return r.nextInt(0x1000);
+    }
+  }
+
+  // 入出力のバッファの種類ごとに、同じ読込みサイズの列で両方のデコーダを動かし、戻り値、出力及び読み込んだバイト数を比較する
+  private static void assertMatchesBaseline(String message, byte[] in, Random r) {
+    int[] chunks = new int[64];
+    for (int i = 0; i < chunks.length; i++) {
+      switch (r.nextInt(4)) {
+        case 0:
+          chunks[i] = 1 + r.nextInt(9);
+          break;
+        case 1:
+          chunks[i] = 15 + r.nextInt(5);
+          break;
+        default:
+          chunks[i] = 1 + r.nextInt(8192);
+          break;
+      }
+    }
+    byte[] expected = decodeBaseline(in, chunks);
+
+    int pad = 1 + r.nextInt(16);
+    byte[] shifted = new byte[in.length + pad * 2];
+    System.arraycopy(in, 0, shifted, pad, in.length);
+    ByteBuffer direct = ByteBuffer.allocateDirect(in.length);
+    direct.put(in).flip();
+
+    assertArrayEquals(message + " (heap input, array output)", expected,
+        decode(new LZSSDecompresser(shifted, pad, in.length), in, chunks, false));
+    assertArrayEquals(message + " (heap input, direct output)", expected,
+        decode(new LZSSDecompresser(shifted, pad, in.length), in, chunks, true));
+    assertArrayEquals(message + " (direct input, array output)", expected,
+        decode(new LZSSDecompresser(direct.duplicate()), in, chunks, false));
+    assertArrayEquals(message + " (direct input, direct output)", expected,
+        decode(new LZSSDecompresser(direct.duplicate()), in, chunks, true));
+  }
+
+  private static byte[] decodeBaseline(byte[] in, int[] chunks) {
+    BitSetDecoder d = new BitSetDecoder(in);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[8192 + 32];
+    for (int i = 0;; i++) {
+      int n = d.decompress(b, 3, chunks[i % chunks.length]);
+      if (n == -1) {
+        return out.toByteArray();
+      }
+      out.write(b, 3, n);
+    }
+  }
+
+  private static byte[] decode(LZSSDecompresser d, byte[] in, int[] chunks, boolean direct) {
+    BitSetDecoder baseline = new BitSetDecoder(in);
+    byte[] expected = new byte[8192 + 32];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[8192 + 32];
+    ByteBuffer buf = ByteBuffer.allocateDirect(8192 + 32);
+    for (int i = 0;; i++) {
+      int len = chunks[i % chunks.length];
+      int m = baseline.decompress(expected, 0, len);
+      int n;
+      if (direct) {
+        buf.clear().position(5);
+        buf.limit(5 + len);
+        n = d.decompress(buf);
+        if (n != -1) {
+          assertEquals(5 + n, buf.position());
+          buf.flip().position(5);
+          buf.get(b, 0, n);
+        }
+      } else {
+        n = d.decompress(b, 5, len);
+        if (n != -1) {
+          System.arraycopy(b, 5, b, 0, n);
+        }
+      }
+      assertEquals("bytes returned by call " + i, m, n);
+      assertEquals("bytes consumed after call " + i, baseline.bytesRead, d.getTotalIn());
+      if (n == -1) {
+        return out.toByteArray();
+      }
+      out.write(b, 0, n);
+    }
+  }
+
+  // トークンを並べてLZSSのストリームを作成し、書込み位置を追跡する
+  private static final class StreamBuilder {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final byte[] group = new byte[1 + BLOCKDATA_SIZE * 2];
+    private int groupLength = 1;
+    private int tokens;
+    private int size;
+
+    void literal(int b) {
+      group[0] = (byte) (group[0] | 1 << tokens);
+      group[groupLength++] = (byte) b;
+      size++;
+      next();
+    }
+
+    void reference(int pos, int len) {
+      group[groupLength++] = (byte) pos;
+      group[groupLength++] = (byte) (((pos >> 8) << 4) | (len - 3));
+      size += len;
+      next();
+    }
+
+    int size() {
+      return size;
+    }
+
+    int dictionaryPosition() {
+      return (INITIAL_POSITION + size) & WINDOW_MASK;
+    }
+
+    byte[] build(int originalSize) {
+      if (0 < tokens) {
+        body.write(group, 0, groupLength);
+      }
+      byte[] b = body.toByteArray();
+      ByteBuffer buf =
+          ByteBuffer.allocate(DATA_HEADER_SIZE + b.length).order(ByteOrder.LITTLE_ENDIAN);
+      buf.putInt(Math.min(buf.capacity(), originalSize)).putInt(originalSize).put(b);
+      return buf.array();
+    }
+
+    private void next() {
+      if (++tokens == BLOCKDATA_SIZE) {
+        body.write(group, 0, groupLength);
+        Arrays.fill(group, (byte) 0);
+        groupLength = 1;
+        tokens = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package party.sprz.wa2.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * フラグをint型のレジスタで扱うLZSSDecompresserと、以前のBitSetを使ったデコーダの速度を比較するベンチマークです。
+ *
+ * 引数は、Packファイルのパスと計測する回数です。すべてのリテラルからなる1MiBのストリームと、最長の参照だけからなる1MiBのストリームに加え、
+ * Packファイルが存在する場合はそのLZSS圧縮されたエントリを、64KiBずつ圧縮解除します。各デコーダを交互に実行し、中央値を表示します。
+ *
+ * 以前のデコーダとして{@link BitSetDecoder}を使うため、テストのクラスパスで実行します。
+ *
+ * @author Nan
+ *
+ */
+public class LZSSFlagBenchmark {
+  private static final int SIZE = 1 << 20;
+  private static final int READ_SIZE = 64 * 1024;
+  private static final int WARMUP = 20;
+
+  public static void main(String[] args) throws IOException {
+    String path = args.length > 0 ? args[0] : "C:\\Leaf\\WHITE ALBUM2\\script.PAK";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+    run("literals", Arrays.asList(literals(new Random(1))), iterations);
+    run("references", Arrays.asList(references()), iterations);
+    if (new File(path).isFile()) {
+      run(new File(path).getName(), entries(path), iterations);
+    }
+  }
+
+  private static void run(String name, List<byte[]> inputs, int iterations) {
+    byte[] out = new byte[READ_SIZE];
+    long[] current = new long[iterations];
+    long[] legacy = new long[iterations];
+    long bytes = 0;
+    for (byte[] in : inputs) {
+      if (checksum(new LZSSDecompresser(in), out) != checksum(new BitSetDecoder(in), out)) {
+        throw new IllegalStateException("decoders disagree on " + name);
+      }
+      bytes += ByteBuffer.wrap(in).order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+    }
+    for (int i = 0; i < WARMUP; i++) {
+      decodeAll(inputs, out, false);
+      decodeAll(inputs, out, true);
+    }
+    for (int i = 0; i < iterations; i++) {
+      current[i] = decodeAll(inputs, out, false);
+      legacy[i] = decodeAll(inputs, out, true);
+    }
+    double c = median(current) / 1e6;
+    double l = median(legacy) / 1e6;
+    System.out.printf("%-12s %6.2f MiB  flag register %8.3f ms (%7.1f MiB/s)"
+        + "  BitSet %8.3f ms (%7.1f MiB/s)  %.2fx%n", name, bytes / (double) (1 << 20), c,
+        bytes / (c / 1e3) / (1 << 20), l, bytes / (l / 1e3) / (1 << 20), l / c);
+  }
+
+  private static long decodeAll(List<byte[]> inputs, byte[] out, boolean legacy) {
+    long start = System.nanoTime();
+    long sink = 0;
+    for (byte[] in : inputs) {
+      sink += legacy ? checksum(new BitSetDecoder(in), out)
+          : checksum(new LZSSDecompresser(in), out);
+    }
+    long nanos = System.nanoTime() - start;
+    // 結果を使うことで、圧縮解除が最適化で取り除かれないようにする
+    if (sink == 42) {
+      System.out.print("");
+    }
+    return nanos;
+  }
+
+  private static long checksum(LZSSDecompresser d, byte[] out) {
+    long sum = 0;
+    int n;
+    while ((n = d.decompress(out, 0, out.length)) != -1) {
+      for (int i = 0; i < n; i += 97) {
+        sum = sum * 31 + out[i];
+      }
+    }
+    return sum;
+  }
+
+  private static long checksum(BitSetDecoder d, byte[] out) {
+    long sum = 0;
+    int n;
+    while ((n = d.decompress(out, 0, out.length)) != -1) {
+      for (int i = 0; i < n; i += 97) {
+        sum = sum * 31 + out[i];
+      }
+    }
+    return sum;
+  }
+
+  private static double median(long[] a) {
+    long[] s = a.clone();
+    Arrays.sort(s);
+    return s[s.length / 2];
+  }
+
+  // フラグがすべて1のグループだけからなる、圧縮できないデータのストリーム
+  private static byte[] literals(Random r) {
+    ByteBuffer b = ByteBuffer.allocate(8 + SIZE / 8 * 9).order(ByteOrder.LITTLE_ENDIAN);
+    // 圧縮時のサイズが元のサイズを超えるとヘッダが不正とみなされるため、元のサイズを書き込む
+    b.putInt(SIZE).putInt(SIZE);
+    byte[] group = new byte[8];
+    for (int i = 0; i < SIZE / 8; i++) {
+      r.nextBytes(group);
+      b.put((byte) 0xFF).put(group);
+    }
+    return b.array();
+  }
+
+  // フラグがすべて0で、直前の18バイトを繰り返す参照だけからなるストリーム
+  private static byte[] references() {
+    int refs = SIZE / 18;
+    int groups = (refs + 7) / 8;
+    ByteBuffer b = ByteBuffer.allocate(8 + groups * 17).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(b.capacity()).putInt(refs * 18);
+    int pos = 0xFEE;
+    for (int g = 0; g < groups; g++) {
+      int n = Math.min(8, refs - g * 8);
+      b.put((byte) (0xFF << n));
+      for (int i = 0; i < n; i++) {
+        int p = (pos - 18) & 0xFFF;
+        b.put((byte) p).put((byte) (((p >> 8) << 4) | (18 - 3)));
+        pos = (pos + 18) & 0xFFF;
+      }
+    }
+    return Arrays.copyOf(b.array(), b.position());
+  }
+
+  private static List<byte[]> entries(String path) throws IOException {
+    List<byte[]> result = new ArrayList<>();
+    try (PackFile pf = new PackFile(path); RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+      for (PackEntry e : (Iterable<PackEntry>) () -> pf.stream().map(PackEntry.class::cast)
+          .filter(x -> x.getMethod() == 1).iterator()) {
+        byte[] b = new byte[(int) e.getCompressedSize()];
+        raf.seek(e.getOffset());
+        raf.readFully(b);
+        result.add(b);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,127 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * LZSSPipelinedDecoderの圧縮解除の結果と、中断されたときに解析スレッドの終了を待つことを確認します。
+ *
+ * @author Nan
+ *
+ */
+public class LZSSPipelinedDecoderTest {
+  private static byte[] original;
+  private static byte[] compressed;
+
+  @BeforeClass
+  public static void setUpClass() {
+    Random r = new Random(42);
+    original = PackFixtures.text(r, LZSSPipelinedDecoder.THRESHOLD + 123457);
+    // 圧縮できない範囲を混ぜ、リテラルの範囲と参照の両方が続くようにする
+    for (int i = 0; i < original.length; i += 300000) {
+      byte[] noise = new byte[Math.min(5000, original.length - i)];
+      r.nextBytes(noise);
+      System.arraycopy(noise, 0, original, i, noise.length);
+    }
+    compressed = PackFixtures.encode(original);
+  }
+
+  @Test
+  public void decodeMatchesOriginal() throws PackException {
+    byte[] b = new byte[original.length + 10];
+    LZSSPipelinedDecoder d = new LZSSPipelinedDecoder(ByteBuffer.wrap(compressed));
+    assertEquals(original.length, d.decode(b, 10, original.length));
+    assertArrayEquals(original, Arrays.copyOfRange(b, 10, b.length));
+    assertEquals(compressed.length, d.getTotalIn());
+  }
+
+  @Test
+  public void decodeStopsAtLength() throws PackException {
+    ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length);
+    direct.put(compressed).flip();
+    int len = original.length / 3 + 7;
+    byte[] b = new byte[len];
+    assertEquals(len, new LZSSPipelinedDecoder(direct).decode(b, 0, len));
+    assertArrayEquals(Arrays.copyOf(original, len), b);
+  }
+
+  @Test
+  public void truncatedDataIsRejected() {
+    byte[] cut = Arrays.copyOf(compressed, compressed.length / 2);
+    try {
+      new LZSSPipelinedDecoder(ByteBuffer.wrap(cut)).decode(new byte[original.length], 0,
+          original.length);
+      fail("truncated data was decoded");
+    } catch (PackException expected) {
+      // 圧縮データが途切れている
+    }
+    assertNull(parsingThread());
+  }
+
+  @Test
+  public void referenceExceedingOriginalSizeIsRejected() throws PackException {
+    // 3つのリテラルのあとに、最初のリテラルを指す18バイトの参照が続く。元のサイズは13バイトなので、参照は8バイトはみ出す
+    ByteBuffer overrun = ByteBuffer.allocate(PackConstants.DATA_HEADER_SIZE + 6)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    overrun.putInt(13).putInt(13).put(new byte[] {0x07, 'a', 'b', 'c', (byte) 0xEE, (byte) 0xFF});
+    overrun.flip();
+    try {
+      new LZSSPipelinedDecoder(overrun).decode(new byte[13], 0, 13);
+      fail("overrun was not reported");
+    } catch (PackException expected) {
+      assertEquals("Data is broken (reference exceeds original size)", expected.getMessage());
+    }
+    // 元のサイズより手前で止める場合は、最後の参照を検査しない
+    byte[] b = new byte[10];
+    assertEquals(10, new LZSSPipelinedDecoder(overrun).decode(b, 0, 10));
+    assertArrayEquals("abcabcabca".getBytes(PackConstants.PACK_ENCODING), b);
+  }
+
+  @Test
+  public void interruptedDecodeWaitsForParser() throws Exception {
+    byte[] b = new byte[original.length];
+    for (int i = 0; i < 30; i++) {
+      AtomicReference<Thread> stillParsing = new AtomicReference<>();
+      Thread t = new Thread(() -> {
+        try {
+          new LZSSPipelinedDecoder(ByteBuffer.wrap(compressed)).decode(b, 0, b.length);
+        } catch (PackException e) {
+          // 割り込まれた
+        } finally {
+          // decodeから戻った時点で、入力を読んでいる解析スレッドは残っていない
+          stillParsing.set(parsingThread());
+        }
+      });
+      t.start();
+      Thread.sleep(i % 5);
+      t.interrupt();
+      t.join();
+      assertNull("parser still running after decode returned", stillParsing.get());
+    }
+  }
+
+  // 解析中のスレッドを返す。ない場合はnull
+  private static Thread parsingThread() {
+    for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+      for (StackTraceElement f : e.getValue()) {
+        if (f.getClassName().equals(LZSSPipelinedDecoder.class.getName())
+            && f.getMethodName().equals("parseTokens")) {
+          return e.getKey();
+        }
+      }
+    }
+    return null;
+  }
+}
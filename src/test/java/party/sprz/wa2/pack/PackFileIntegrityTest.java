@@ -0,0 +1,108 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 最後の参照が元のサイズを超えるエントリを、readやreadAllなどの読込み方法によらず、verifyと同じく壊れていると判定することを確認します。
+ *
+ * @author Nan
+ *
+ */
+public class PackFileIntegrityTest implements PackConstants {
+  private static final String OVERRUN = "overrun.txt";
+  private static final String VALID = "valid.txt";
+  // 3つのリテラルのあとに、最初のリテラルを指す18バイトの参照が続く。元のサイズは13バイトなので、参照は8バイトはみ出す
+  private static final int ORIGINAL_SIZE = 13;
+  private static final byte[] OVERRUN_BODY = {0x07, 'a', 'b', 'c', (byte) 0xEE, (byte) 0xFF};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private PackFile pf;
+
+  @Before
+  public void setUp() throws IOException {
+    ByteBuffer overrun = ByteBuffer.allocate(DATA_HEADER_SIZE + OVERRUN_BODY.length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    overrun.putInt(ORIGINAL_SIZE).putInt(ORIGINAL_SIZE).put(OVERRUN_BODY);
+    byte[] valid = PackFixtures.encode("abcabcabcabcabcabc".getBytes(PACK_ENCODING));
+    File file = folder.newFile("integrity.pak");
+    PackFixtures.writeData(file, Arrays.asList(OVERRUN, VALID),
+        Arrays.asList(overrun.array(), valid), new boolean[] {true, true});
+    pf = new PackFile(file);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    pf.close();
+  }
+
+  @Test
+  public void verifyReportsOverrun() throws IOException {
+    Map<PackEntry, IOException> broken = pf.verify();
+    assertEquals(Collections.singleton(pf.getEntry(OVERRUN)), broken.keySet());
+  }
+
+  @Test
+  public void readIntoExactBufferReportsOverrun() throws IOException {
+    PackEntry e = pf.getEntry(OVERRUN);
+    assertEquals(ORIGINAL_SIZE, e.getSize());
+    for (ByteBuffer b : Arrays.asList(ByteBuffer.allocate(ORIGINAL_SIZE),
+        ByteBuffer.allocateDirect(ORIGINAL_SIZE), ByteBuffer.allocate(ORIGINAL_SIZE + 5))) {
+      try {
+        pf.read(e, b);
+        fail("overrun was not reported for " + b);
+      } catch (PackException expected) {
+        // 元のサイズを超える参照
+      }
+    }
+  }
+
+  @Test
+  public void partialReadDoesNotCheckTheRest() throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(5);
+    assertEquals(5, pf.read(pf.getEntry(OVERRUN), b));
+    assertArrayEquals("abcab".getBytes(PACK_ENCODING), b.array());
+  }
+
+  @Test
+  public void readAllReportsOverrun() throws IOException {
+    try {
+      pf.readAll(Arrays.asList(VALID, OVERRUN));
+      fail("overrun was not reported");
+    } catch (PackException expected) {
+      assertTrue(expected.getMessage().contains("reference exceeds original size"));
+    }
+  }
+
+  @Test
+  public void streamReportsOverrun() throws IOException {
+    try (InputStream in = pf.createInputStream(pf.getEntry(OVERRUN))) {
+      byte[] b = new byte[64];
+      while (in.read(b) != -1) {
+        // 最後まで読み込む
+      }
+      fail("overrun was not reported");
+    } catch (PackException expected) {
+      // 元のサイズを超える参照
+    }
+  }
+}
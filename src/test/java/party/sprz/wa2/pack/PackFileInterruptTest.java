@@ -0,0 +1,123 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 読込み中のスレッドへの割込みが、同じPackファイルの他の読込みに影響しないことを確認します。
+ *
+ * @author Nan
+ *
+ */
+public class PackFileInterruptTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private PackFixtures.Archive archive;
+
+  @Before
+  public void setUp() throws IOException {
+    archive = PackFixtures.sample(folder.newFile("test.pak"), new Random(1), 40, 20000);
+  }
+
+  @Test
+  public void interruptedReadDoesNotCloseThePackFile() throws Exception {
+    try (PackFile pf = new PackFile(archive.file)) {
+      PackEntry e = pf.getEntry(archive.names.get(0));
+      Thread.currentThread().interrupt();
+      try {
+        pf.read(e, ByteBuffer.allocate((int) e.getSize()));
+        fail("read should fail while interrupted");
+      } catch (ClosedByInterruptException expected) {
+        // 割り込まれた読込みだけが失敗する
+      } finally {
+        assertTrue(Thread.interrupted());
+      }
+
+      // 別のスレッドからも、割り込まれたスレッドからも読み込める
+      AtomicInteger verified = new AtomicInteger();
+      Thread other = new Thread(() -> {
+        try {
+          verified.set(readAll(pf));
+        } catch (IOException ex) {
+          throw new AssertionError(ex);
+        }
+      });
+      other.start();
+      other.join();
+      assertEquals(archive.names.size(), verified.get());
+      assertEquals(archive.names.size(), readAll(pf));
+    }
+  }
+
+  @Test
+  public void repeatedInterruptsDoNotBreakConcurrentReaders() throws Exception {
+    try (PackFile pf = new PackFile(archive.file)) {
+      AtomicBoolean done = new AtomicBoolean();
+      Thread victim = new Thread(() -> {
+        ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+        while (!done.get()) {
+          for (String name : archive.names) {
+            b.clear();
+            try {
+              pf.read(pf.getEntry(name), b);
+            } catch (ClosedByInterruptException ex) {
+              Thread.interrupted();
+            } catch (IOException ex) {
+              throw new AssertionError(ex);
+            }
+          }
+        }
+      });
+      victim.start();
+      try {
+        for (int i = 0; i < 50; i++) {
+          victim.interrupt();
+          assertEquals(archive.names.size(), readAll(pf));
+        }
+      } finally {
+        done.set(true);
+        victim.join();
+      }
+      assertEquals(archive.names.size(), readAll(pf));
+    }
+  }
+
+  // すべてのエントリをストリームとreadの両方で読み込み、内容が一致したエントリの数を返す
+  private int readAll(PackFile pf) throws IOException {
+    int n = 0;
+    for (int i = 0; i < archive.names.size(); i++) {
+      PackEntry e = pf.getEntry(archive.names.get(i));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream in = pf.createInputStream(e)) {
+        byte[] b = new byte[4096];
+        int r;
+        while ((r = in.read(b)) != -1) {
+          out.write(b, 0, r);
+        }
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int) e.getSize());
+      pf.read(e, buf);
+      assertArrayEquals(archive.contents.get(i), out.toByteArray());
+      assertArrayEquals(archive.contents.get(i), buf.array());
+      n++;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,247 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 数千の読込みスレッドが同時にreadとcreateInputStreamを呼び出し、その途中でPackファイルを閉じても、
+ * 内容が壊れたり、スレッドが止まったり、想定していない例外が発生したりしないことを確認します。
+ *
+ * Java 21以降では仮想スレッドで読み込み、それより前のバージョンではプラットフォーム・スレッドのプールで読み込みます。
+ * 仮想スレッドで読み込む場合は、読込みの間にキャリア・スレッドを固定したことを示すJFRのイベントが記録されないことも確認します。
+ *
+ * @author Nan
+ *
+ */
+public class PackFileLoadTest {
+  private static final int READERS = 5000;
+  private static final int PLATFORM_THREADS = 200;
+  // 閉じる前に、最初の読込みを終えている読込みスレッドの数
+  private static final int STARTED_READERS = 100;
+  private static final long TIMEOUT_SECONDS = 120;
+  private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private PackFixtures.Archive archive;
+
+  @Before
+  public void setUp() throws IOException {
+    archive = PackFixtures.sample(folder.newFile("load.pak"), new Random(45), 200, 30000);
+  }
+
+  @Test
+  public void concurrentReadersSeeCorrectData() throws Exception {
+    try (PackFile pf = new PackFile(archive.file)) {
+      Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+      AtomicInteger verified = new AtomicInteger();
+      Recording pinning = startPinningRecording();
+      ExecutorService readers = readers();
+      for (int i = 0; i < READERS; i++) {
+        long seed = i;
+        readers.execute(() -> {
+          Random r = new Random(seed);
+          try {
+            for (int k = 0; k < 4; k++) {
+              readRandomEntry(pf, r);
+              verified.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        });
+      }
+      shutdown(readers);
+      assertNoFailures(failures);
+      assertEquals(READERS * 4, verified.get());
+      assertNoPinning(pinning);
+    }
+  }
+
+  @Test
+  public void closeWhileReadingFailsOnlyWithClosedErrors() throws Exception {
+    closeWhileReading(new PackFile(archive.file));
+  }
+
+  @Test
+  public void closeWhileReadingPreloadedFailsOnlyWithClosedErrors() throws Exception {
+    closeWhileReading(new PackFile(archive.file, PackMetrics.NONE, Long.MAX_VALUE));
+  }
+
+  private void closeWhileReading(PackFile pf) throws Exception {
+    Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    AtomicInteger closedErrors = new AtomicInteger();
+    CountDownLatch reading = new CountDownLatch(STARTED_READERS);
+    Recording pinning = startPinningRecording();
+    ExecutorService readers = readers();
+    try {
+      for (int i = 0; i < READERS; i++) {
+        long seed = i;
+        readers.execute(() -> {
+          Random r = new Random(seed);
+          try {
+            // 閉じられるまで読み続ける。閉じたあとで始めた読込みは、閉じられていることを示す例外で失敗する
+            for (int k = 0; k < 1000; k++) {
+              readRandomEntry(pf, r);
+              if (k == 0) {
+                reading.countDown();
+              }
+            }
+          } catch (Throwable t) {
+            if (isClosedError(t)) {
+              closedErrors.incrementAndGet();
+            } else {
+              failures.add(t);
+            }
+          } finally {
+            reading.countDown();
+          }
+        });
+      }
+      assertTrue(reading.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    } finally {
+      pf.close();
+    }
+    shutdown(readers);
+    assertNoFailures(failures);
+    assertTrue("no reader observed the close", 0 < closedErrors.get());
+    assertNoPinning(pinning);
+  }
+
+  // エントリを1つ選び、readかcreateInputStreamで読み込んで内容を確認する
+  private void readRandomEntry(PackFile pf, Random r) throws IOException {
+    int i = r.nextInt(archive.names.size());
+    byte[] expected = archive.contents.get(i);
+    PackEntry e = pf.getEntry(archive.names.get(i));
+    switch (r.nextInt(4)) {
+      case 0: {
+        ByteBuffer b = ByteBuffer.allocate(expected.length);
+        assertEquals(expected.length, pf.read(e, b));
+        assertArrayEquals(expected, b.array());
+        break;
+      }
+      case 1: {
+        ByteBuffer b = ByteBuffer.allocateDirect(expected.length);
+        assertEquals(expected.length, pf.read(e, b));
+        byte[] a = new byte[expected.length];
+        b.flip();
+        b.get(a);
+        assertArrayEquals(expected, a);
+        break;
+      }
+      case 2:
+        try (InputStream in = pf.createInputStream(e)) {
+          assertArrayEquals(expected, readFully(in));
+        }
+        break;
+      default: {
+        int position = expected.length == 0 ? 0 : r.nextInt(expected.length);
+        try (InputStream in = pf.createInputStream(e, position)) {
+          assertArrayEquals(Arrays.copyOfRange(expected, position, expected.length),
+              readFully(in));
+        }
+        break;
+      }
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[4096];
+    int n;
+    while ((n = in.read(b)) != -1) {
+      out.write(b, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  // 閉じたあとに呼び出したメソッドは、IllegalStateExceptionか、入出力の途中で閉じられた場合はPackExceptionで失敗する
+  private static boolean isClosedError(Throwable t) {
+    return (t instanceof IllegalStateException || t instanceof PackException)
+        && "PackFile closed".equals(t.getMessage());
+  }
+
+  private static void assertNoFailures(Queue<Throwable> failures) {
+    if (!failures.isEmpty()) {
+      AssertionError e =
+          new AssertionError(failures.size() + " readers failed: " + failures.peek());
+      e.initCause(failures.peek());
+      throw e;
+    }
+  }
+
+  private static void shutdown(ExecutorService readers) throws InterruptedException {
+    readers.shutdown();
+    assertTrue("readers did not finish",
+        readers.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  // 仮想スレッドを使えるバージョンでは、キャリア・スレッドを固定したイベントをすべて記録する。それより前のバージョンではnullを返す
+  private static Recording startPinningRecording() {
+    if (Runtime.version().feature() < 21) {
+      return null;
+    }
+    Recording r = new Recording();
+    r.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+    r.start();
+    return r;
+  }
+
+  private void assertNoPinning(Recording r) throws IOException {
+    if (r == null) {
+      return;
+    }
+    List<RecordedEvent> pinned;
+    try {
+      r.stop();
+      Path file = folder.newFile("pinning.jfr").toPath();
+      r.dump(file);
+      pinned = RecordingFile.readAllEvents(file).stream()
+          .filter(e -> e.getEventType().getName().equals(PINNED_EVENT))
+          .collect(Collectors.toList());
+    } finally {
+      r.close();
+    }
+    assertTrue(pinned.size() + " virtual thread pinning events, first: "
+        + (pinned.isEmpty() ? "" : pinned.get(0)), pinned.isEmpty());
+  }
+
+  // 仮想スレッドを使えるバージョンでは、読込みごとに仮想スレッドを作成するExecutorServiceを返す
+  private static ExecutorService readers() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(PLATFORM_THREADS);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * readAllが各エントリの内容を返し、格納されたエントリのバッファが、まとめて読み込んだバッファを保持し続けないことを確認します。
+ *
+ * @author Nan
+ *
+ */
+public class PackFileReadAllTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readAllReturnsContents() throws IOException {
+    PackFixtures.Archive archive =
+        PackFixtures.sample(folder.newFile("all.pak"), new Random(33), 64, 30000);
+    try (PackFile pf = new PackFile(archive.file)) {
+      Map<String, ByteBuffer> result = pf.readAll(archive.names);
+      assertEquals(archive.names.size(), result.size());
+      for (int i = 0; i < archive.names.size(); i++) {
+        ByteBuffer b = result.get(archive.names.get(i));
+        byte[] expected = archive.contents.get(i);
+        assertEquals(archive.names.get(i), ByteBuffer.wrap(expected), b);
+        if (i % 4 == 3) {
+          // 格納されたエントリは、まとめて読み込んだバッファのスライスではなく、エントリの分だけのバッファに複写されている
+          assertEquals(archive.names.get(i), expected.length, b.array().length);
+        }
+      }
+    }
+  }
+}
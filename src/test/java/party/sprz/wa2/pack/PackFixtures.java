@@ -0,0 +1,197 @@
+package party.sprz.wa2.pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * テストで使用するKCAP形式のPackファイルとLZSS圧縮されたデータを生成します。
+ *
+ * @author Nan
+ *
+ */
+final class PackFixtures implements PackConstants {
+  private static final String[] WORDS =
+      {"the ", "WHITE ", "ALBUM ", "冬馬", "かずさ", "雪菜 ", "春希 ", "\n", "0123 "};
+
+  /**
+   * 生成したPackファイルの、エントリの名前と圧縮解除された内容です。
+   */
+  static final class Archive {
+    final File file;
+    final List<String> names;
+    final List<byte[]> contents;
+
+    Archive(File file, List<String> names, List<byte[]> contents) {
+      this.file = file;
+      this.names = names;
+      this.contents = contents;
+    }
+  }
+
+  private PackFixtures() {
+  }
+
+  /**
+   * テキストとバイナリのエントリを含むPackファイルを生成します。テキストのエントリはLZSSで圧縮し、バイナリのエントリは格納します。
+   *
+   * @param file 書込み先のファイル
+   * @param r 内容を生成する乱数
+   * @param count エントリの数
+   * @param maxSize エントリの最大サイズ
+   * @return 生成したPackファイル
+   */
+  static Archive sample(File file, Random r, int count, int maxSize) throws IOException {
+    List<String> names = new ArrayList<>();
+    List<byte[]> contents = new ArrayList<>();
+    boolean[] compress = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      names.add(String.format("ev_%03d%s", i, i % 4 == 3 ? ".bmp" : ".txt"));
+      if (i % 4 == 3) {
+        byte[] b = new byte[r.nextInt(maxSize)];
+        r.nextBytes(b);
+        contents.add(b);
+      } else {
+        contents.add(text(r, r.nextInt(maxSize)));
+        compress[i] = true;
+      }
+    }
+    write(file, names, contents, compress);
+    return new Archive(file, names, contents);
+  }
+
+  /**
+   * 指定された内容のエントリを含むPackファイルを書き込みます。
+   *
+   * @param file 書込み先のファイル
+   * @param names エントリの名前
+   * @param contents エントリの内容
+   * @param compress LZSSで圧縮するエントリではtrue
+   */
+  static void write(File file, List<String> names, List<byte[]> contents, boolean[] compress)
+      throws IOException {
+    List<byte[]> data = new ArrayList<>();
+    for (int i = 0; i < names.size(); i++) {
+      data.add(compress[i] ? encode(contents.get(i)) : contents.get(i));
+    }
+    writeData(file, names, data, compress);
+  }
+
+  /**
+   * 指定されたデータ領域のエントリを含むPackファイルを書き込みます。データ領域はそのまま書き込むため、壊れたデータも書き込めます。
+   *
+   * @param file 書込み先のファイル
+   * @param names エントリの名前
+   * @param data エントリのデータ領域。LZSS圧縮されたエントリではヘッダを含む
+   * @param compressed LZSS圧縮されたエントリではtrue
+   */
+  static void writeData(File file, List<String> names, List<byte[]> data, boolean[] compressed)
+      throws IOException {
+    int n = names.size();
+    ByteBuffer header =
+        ByteBuffer.allocate(PACKHEADER_SIZE + KCAPHEADER_SIZE * n).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(KCAP_SIGNATURE.getBytes(PACK_ENCODING)).putInt(0).putInt(0).putInt(n);
+    long offset = header.capacity();
+    for (int i = 0; i < n; i++) {
+      header.putInt(compressed[i] ? 1 : 0);
+      header.put(Arrays.copyOf(names.get(i).getBytes(PACK_ENCODING), ENTRYNAME_SIZE));
+      header.putInt(0).putInt(0).putInt((int) offset).putInt(data.get(i).length);
+      offset += data.get(i).length;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) offset);
+    out.write(header.array());
+    for (byte[] d : data) {
+      out.write(d);
+    }
+    Files.write(file.toPath(), out.toByteArray());
+  }
+
+  /**
+   * 単語を並べた、圧縮しやすいテキストを生成します。
+   *
+   * @param r 乱数
+   * @param length おおよそのバイト数
+   * @return PACK_ENCODINGで符号化したテキスト
+   */
+  static byte[] text(Random r, int length) {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < length) {
+      sb.append(WORDS[r.nextInt(WORDS.length)]);
+    }
+    byte[] b = sb.toString().getBytes(PACK_ENCODING);
+    return Arrays.copyOf(b, Math.min(b.length, length));
+  }
+
+  /**
+   * 直前の出現位置だけを探す簡単なLZSS圧縮で、ヘッダ付きのデータ領域を作成します。
+   *
+   * 圧縮してもサイズが小さくならない場合、ヘッダの圧縮時のサイズには元のサイズを書き込みます。
+   *
+   * @param in 圧縮するデータ
+   * @return ヘッダとLZSS圧縮されたデータ
+   */
+  static byte[] encode(byte[] in) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(in.length / 2 + 16);
+    int[] last = new int[1 << 16];
+    Arrays.fill(last, -1);
+    byte[] group = new byte[1 + BLOCKDATA_SIZE * 2];
+    int i = 0;
+    while (i < in.length) {
+      int flags = 0;
+      int n = 1;
+      for (int bit = 0; bit < BLOCKDATA_SIZE && i < in.length; bit++) {
+        int len = 0;
+        int j = -1;
+        if (i + 3 <= in.length) {
+          j = last[hash(in, i)];
+          // スライディング窓で上書きされていない範囲だけを参照する
+          if (j != -1 && i - j < LZSSDecompresser.SLIDING_WINDOW_SIZE
+              - LZSSDecompresser.MAXIMUM_REFERENCE_LENGTH) {
+            while (len < LZSSDecompresser.MAXIMUM_REFERENCE_LENGTH && i + len < in.length
+                && in[j + len] == in[i + len]) {
+              len++;
+            }
+          }
+        }
+        if (len >= 3) {
+          // 出力のjバイト目は、スライディング窓の0xFEE + jの位置に書き込まれている
+          int p = (0xFEE + j) & 0xFFF;
+          group[n++] = (byte) p;
+          group[n++] = (byte) (((p >> 8) << 4) | (len - 3));
+          for (int k = 0; k < len; k++) {
+            if (i + k + 3 <= in.length) {
+              last[hash(in, i + k)] = i + k;
+            }
+          }
+          i += len;
+        } else {
+          flags |= 1 << bit;
+          group[n++] = in[i];
+          if (i + 3 <= in.length) {
+            last[hash(in, i)] = i;
+          }
+          i++;
+        }
+      }
+      group[0] = (byte) flags;
+      out.write(group, 0, n);
+    }
+    byte[] body = out.toByteArray();
+    ByteBuffer b =
+        ByteBuffer.allocate(DATA_HEADER_SIZE + body.length).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(Math.min(b.capacity(), in.length)).putInt(in.length).put(body);
+    return b.array();
+  }
+
+  private static int hash(byte[] b, int i) {
+    int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+    return (v * 0x9E3779B1) >>> 16;
+  }
+}
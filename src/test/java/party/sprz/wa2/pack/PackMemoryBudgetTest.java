@@ -0,0 +1,148 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * PackMemoryBudgetが、上限を超える要求を解放されるまで待たせ、待ちきれない要求と省略できる要求を拒否することを確認します。
+ *
+ * @author Nan
+ *
+ */
+public class PackMemoryBudgetTest {
+  private static final long TIMEOUT_SECONDS = 30;
+
+  @Test
+  public void acquireOverCapBlocksUntilRelease() throws Exception {
+    PackMemoryBudget budget = new PackMemoryBudget(100, 100, TimeUnit.SECONDS.toMillis(60));
+    budget.acquireBuffer(80);
+    CompletableFuture<Void> waiting = acquireLater(budget, 40);
+    awaitWaits(budget, 1);
+    try {
+      waiting.get(100, TimeUnit.MILLISECONDS);
+      fail("acquire over the cap did not block");
+    } catch (TimeoutException expected) {
+      // 解放されるまで待機している
+    }
+    // マップした領域の予算はバッファの予算とは別に数える
+    budget.acquireMapped(100);
+
+    budget.releaseBuffer(80);
+    assertNull(waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(40, budget.getBufferBytes());
+    assertEquals(100, budget.getMappedBytes());
+    assertEquals(0, budget.getRejectionCount());
+  }
+
+  @Test
+  public void acquireOverCapFailsWithoutWait() throws Exception {
+    PackMemoryBudget budget = new PackMemoryBudget(100, 100, 0);
+    budget.acquireBuffer(80);
+    try {
+      budget.acquireBuffer(40);
+      fail("acquire over the cap succeeded");
+    } catch (PackException expected) {
+      // 待機しない場合はただちに失敗する
+    }
+    assertEquals(80, budget.getBufferBytes());
+    assertEquals(0, budget.getWaitCount());
+    assertEquals(1, budget.getRejectionCount());
+  }
+
+  @Test
+  public void acquireOverCapFailsAfterWait() throws Exception {
+    PackMemoryBudget budget = new PackMemoryBudget(100, 100, 50);
+    budget.acquireMapped(80);
+    try {
+      budget.acquireMapped(40);
+      fail("acquire over the cap succeeded");
+    } catch (PackException expected) {
+      // 待機しても解放されなかった
+    }
+    assertEquals(80, budget.getMappedBytes());
+    assertEquals(1, budget.getWaitCount());
+    assertEquals(1, budget.getRejectionCount());
+  }
+
+  @Test
+  public void interruptedWaitFails() throws Exception {
+    PackMemoryBudget budget = new PackMemoryBudget(100, 100, TimeUnit.SECONDS.toMillis(60));
+    budget.acquireBuffer(100);
+    Thread.currentThread().interrupt();
+    try {
+      budget.acquireBuffer(1);
+      fail("interrupted acquire succeeded");
+    } catch (InterruptedIOException expected) {
+      assertTrue(Thread.interrupted());
+    }
+    assertEquals(100, budget.getBufferBytes());
+  }
+
+  @Test
+  public void oversizeRequestIsAllowedOnlyWhenIdle() throws Exception {
+    PackMemoryBudget budget = new PackMemoryBudget(100, 100, 0);
+    // 上限より大きい要求も、使用量が0であれば許可される
+    budget.acquireBuffer(500);
+    assertEquals(500, budget.getBufferBytes());
+    try {
+      budget.acquireBuffer(1);
+      fail("acquire beyond an oversize request succeeded");
+    } catch (PackException expected) {
+      // 上限を超えている
+    }
+    budget.releaseBuffer(500);
+    try {
+      budget.acquireBuffer(1);
+      budget.acquireBuffer(500);
+      fail("oversize request was allowed while the budget was in use");
+    } catch (PackException expected) {
+      // 使用量が0でなければ上限を超える要求は許可されない
+    }
+    assertEquals(1, budget.getBufferBytes());
+  }
+
+  @Test
+  public void optionalRequestsAreShed() {
+    PackMemoryBudget budget = new PackMemoryBudget(100, 100, TimeUnit.SECONDS.toMillis(60));
+    // 省略できる要求は、使用量が0でも上限を超えれば許可されず、待機もしない
+    assertFalse(budget.tryAcquireBuffer(500));
+    assertTrue(budget.tryAcquireBuffer(80));
+    assertFalse(budget.tryAcquireBuffer(40));
+    assertEquals(80, budget.getBufferBytes());
+    assertEquals(0, budget.getWaitCount());
+    assertEquals(2, budget.getRejectionCount());
+    budget.releaseBuffer(80);
+    assertTrue(budget.tryAcquireBuffer(100));
+  }
+
+  private static CompletableFuture<Void> acquireLater(PackMemoryBudget budget, long bytes) {
+    return CompletableFuture.runAsync(() -> {
+      try {
+        budget.acquireBuffer(bytes);
+      } catch (PackException | InterruptedIOException e) {
+        throw new IllegalStateException(e);
+      }
+    }, r -> new Thread(r).start());
+  }
+
+  // 要求が待機を始めるまで待つ
+  private static void awaitWaits(PackMemoryBudget budget, long waits) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (budget.getWaitCount() < waits) {
+      if (deadline < System.nanoTime()) {
+        fail("acquire did not wait");
+      }
+      Thread.sleep(1);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 決まった順序でエントリを読み込むスレッドが、他のスレッドのアクセスと混ざっても、その順序を学習して先読みが当たることを確認します。
+ *
+ * @author Nan
+ *
+ */
+public class PackPrefetcherTest {
+  private static final int THREADS = 4;
+  private static final int ENTRIES_PER_THREAD = 4;
+  private static final int CYCLES = 8;
+  // 先読みが完了するのを待つ最大時間
+  private static final long PREFETCH_WAIT_MILLIS = 50;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void fixedOrderPerThreadIsPrefetched() throws Exception {
+    PackFixtures.Archive archive = PackFixtures.sample(folder.newFile("prefetch.pak"),
+        new Random(35), THREADS * ENTRIES_PER_THREAD, 20000);
+    ExecutorService[] threads = new ExecutorService[THREADS];
+    for (int t = 0; t < THREADS; t++) {
+      threads[t] = Executors.newSingleThreadExecutor();
+    }
+    // 1つ先だけを、そのエントリだけが続く場合に先読みする。スレッドのアクセスが混ざって学習されると、どの後続エントリも確率が足りない
+    try (PackFile pf = new PackFile(archive.file);
+        PackPrefetcher prefetcher = new PackPrefetcher(1, 0.5, 8 * 1024 * 1024)) {
+      pf.setPrefetcher(prefetcher);
+      int[] next = new int[THREADS];
+      Random r = new Random(3);
+      for (int i = 0; i < THREADS * ENTRIES_PER_THREAD * CYCLES; i++) {
+        // 各スレッドは自分のエントリを決まった順序で読み込むが、どのスレッドが次に読み込むかは毎回変わる
+        int t = r.nextInt(THREADS);
+        int k = t * ENTRIES_PER_THREAD + next[t]++ % ENTRIES_PER_THREAD;
+        long before = prefetcher.getPrefetched();
+        threads[t].submit(() -> read(pf, archive, k)).get();
+        awaitPrefetch(prefetcher, before);
+      }
+      // 最初の2周で順序を学習すれば、それ以降のアクセスはすべて先読みされている
+      long expected = (long) THREADS * ENTRIES_PER_THREAD * (CYCLES - 2);
+      assertTrue(prefetcher + ", expected at least " + expected + " hits",
+          expected <= prefetcher.getHits());
+    } finally {
+      for (ExecutorService e : threads) {
+        e.shutdown();
+      }
+    }
+  }
+
+  private static Void read(PackFile pf, PackFixtures.Archive archive, int k) throws IOException {
+    byte[] expected = archive.contents.get(k);
+    ByteBuffer b = ByteBuffer.allocate(expected.length);
+    pf.read(pf.getEntry(archive.names.get(k)), b);
+    assertArrayEquals(expected, b.array());
+    return null;
+  }
+
+  // 読込みで先読みが始まった場合は、圧縮解除が終わるまで待つ
+  private static void awaitPrefetch(PackPrefetcher prefetcher, long before)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + PREFETCH_WAIT_MILLIS * 1000000;
+    while (prefetcher.getPrefetched() == before && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+}
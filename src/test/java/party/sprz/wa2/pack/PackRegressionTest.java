@@ -0,0 +1,316 @@
+package party.sprz.wa2.pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * LZSSDecompresser、PackFile及びPackInputStreamの、割当てとスループットの退行を検出します。
+ *
+ * 生成したPackファイルを各方法で繰り返し読み込み、エントリ1つあたりのヒープ割当てをcom.sun.management.ThreadMXBeanで計測して
+ * 上限と比較します。割当ての上限は、圧縮解除のループのように割当てを行わないはずの箇所では0バイトです。ストリームやマップした領域を
+ * 作成する箇所では、エントリのサイズによらない小さな値にしています。スレッドごとの割当てを計測できないJVMでは、割当ての検査を省略します。
+ *
+ * スループットは計測する環境によって大きく変わるため、同じ実行の中で計測した基準と比較します。圧縮解除は以前のBitSetを使ったデコーダと、
+ * ダイレクト・バッファへの圧縮解除とPackFile及びPackInputStreamの読込みは配列からLZSSDecompresserで圧縮解除した速度と比べます。他の処理による揺らぎを避けるため、
+ * 何回か計測して最も速かった値を使います。
+ *
+ * @author Nan
+ *
+ */
+public class PackRegressionTest {
+  private static final int ENTRIES = 64;
+  private static final int MAX_ENTRY_SIZE = 256 * 1024;
+  private static final int WARMUP_PASSES = 30;
+  private static final int PASSES = 20;
+  private static final int ROUNDS = 5;
+  // ストリームやマップした領域、LZSSのスライディング窓を作成するための、エントリ1つあたりの割当ての上限
+  private static final long MAX_BYTES_PER_ENTRY = 8 * 1024;
+
+  @ClassRule
+  public static TemporaryFolder folder = new TemporaryFolder();
+
+  private static com.sun.management.ThreadMXBean threads;
+  private static byte[] archiveBytes;
+  private static PackFile pf;
+  private static PackEntry[] entries;
+  private static PackEntry[] lzssEntries;
+  private static List<byte[]> compressed;
+  private static long maxCompressedSize;
+  private static byte[] out;
+  private static ByteBuffer directOut;
+  // 配列からLZSSDecompresserで圧縮解除したスループット。最初に必要になったときに計測する
+  private static double decompressThroughput;
+
+  @FunctionalInterface
+  private interface Pass {
+    /**
+     * すべての対象を1回ずつ読み込みます。
+     *
+     * @param alloc 割当てを計測する区間で呼び出す
+     * @return 読み込んだバイト数
+     */
+    long run(Allocation alloc) throws IOException;
+  }
+
+  // 計測する区間の割当てを合計する。区間の外の準備や後始末の割当ては数えない
+  private static class Allocation {
+    long bytes;
+    private long start;
+
+    void begin() {
+      start = allocated();
+    }
+
+    void end() {
+      bytes += allocated() - start;
+    }
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws IOException {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      threads = (com.sun.management.ThreadMXBean) bean;
+      threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    PackFixtures.Archive archive = PackFixtures.sample(folder.newFile("regression.pak"),
+        new Random(49), ENTRIES, MAX_ENTRY_SIZE);
+    archiveBytes = Files.readAllBytes(archive.file.toPath());
+    pf = new PackFile(archive.file);
+    entries = pf.stream().toArray(PackEntry[]::new);
+    lzssEntries = pf.stream().filter(e -> e.getMethod() == 1).toArray(PackEntry[]::new);
+    compressed = new ArrayList<>();
+    for (PackEntry e : lzssEntries) {
+      int from = (int) e.getOffset();
+      compressed.add(Arrays.copyOfRange(archiveBytes, from, from + (int) e.getCompressedSize()));
+    }
+    for (PackEntry e : entries) {
+      maxCompressedSize = Math.max(maxCompressedSize, e.getCompressedSize());
+    }
+    out = new byte[MAX_ENTRY_SIZE];
+    directOut = ByteBuffer.allocateDirect(MAX_ENTRY_SIZE);
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws IOException {
+    pf.close();
+  }
+
+  @Test
+  public void decompressLoopDoesNotAllocate() throws IOException {
+    assertAllocationAtMost(0, compressed.size(), PackRegressionTest::decompress);
+  }
+
+  @Test
+  public void readAllocationIsBoundedPerEntry() throws IOException {
+    assertAllocationAtMost(MAX_BYTES_PER_ENTRY, entries.length, alloc -> read(alloc, entries));
+  }
+
+  @Test
+  public void createInputStreamAllocationIsBoundedPerEntry() throws IOException {
+    assertAllocationAtMost(MAX_BYTES_PER_ENTRY, entries.length,
+        alloc -> createInputStream(alloc, entries));
+  }
+
+  // 圧縮されたデータを保持するバッファの分だけ割り当てるため、上限は最大のエントリに合わせる
+  @Test
+  public void packInputStreamAllocationIsBoundedByLargestEntry() throws IOException {
+    assertAllocationAtMost(maxCompressedSize + MAX_BYTES_PER_ENTRY, entries.length,
+        PackRegressionTest::packInputStream);
+  }
+
+  // フラグ・レジスタと一括複写を使う圧縮解除は、以前の1バイトずつの圧縮解除より速い
+  @Test
+  public void decompressIsFasterThanBitSetDecoder() throws IOException {
+    double current = decompressThroughput();
+    double legacy = throughput(alloc -> {
+      long n = 0;
+      for (byte[] c : compressed) {
+        BitSetDecoder d = new BitSetDecoder(c);
+        int r;
+        while ((r = d.decompress(out, 0, out.length)) != -1) {
+          n += r;
+        }
+      }
+      return n;
+    });
+    assertThroughputAtLeast(1.2, current, legacy);
+  }
+
+  // ダイレクト・バッファへの圧縮解除も、配列への圧縮解除と同じ一括複写を使う
+  @Test
+  public void directDecompressKeepsUpWithDecompress() throws IOException {
+    double decompress = decompressThroughput();
+    assertThroughputAtLeast(0.7, throughput(PackRegressionTest::decompressDirect), decompress);
+  }
+
+  @Test
+  public void readKeepsUpWithDecompress() throws IOException {
+    double decompress = decompressThroughput();
+    assertThroughputAtLeast(0.5, throughput(alloc -> read(alloc, lzssEntries)), decompress);
+  }
+
+  @Test
+  public void createInputStreamKeepsUpWithDecompress() throws IOException {
+    double decompress = decompressThroughput();
+    assertThroughputAtLeast(0.5, throughput(alloc -> createInputStream(alloc, lzssEntries)),
+        decompress);
+  }
+
+  @Test
+  public void packInputStreamKeepsUpWithDecompress() throws IOException {
+    double decompress = decompressThroughput();
+    assertThroughputAtLeast(0.5, throughput(PackRegressionTest::packInputStream), decompress);
+  }
+
+  private static double decompressThroughput() throws IOException {
+    if (decompressThroughput == 0) {
+      decompressThroughput = throughput(PackRegressionTest::decompress);
+    }
+    return decompressThroughput;
+  }
+
+  private static long decompress(Allocation alloc) {
+    long n = 0;
+    for (byte[] c : compressed) {
+      try (LZSSDecompresser d = new LZSSDecompresser(c)) {
+        alloc.begin();
+        int r;
+        while ((r = d.decompress(out, 0, out.length)) != -1) {
+          n += r;
+        }
+        alloc.end();
+      }
+    }
+    return n;
+  }
+
+  private static long decompressDirect(Allocation alloc) {
+    long n = 0;
+    for (byte[] c : compressed) {
+      try (LZSSDecompresser d = new LZSSDecompresser(c)) {
+        alloc.begin();
+        int r;
+        while ((r = d.decompress(directOut)) != -1) {
+          n += r;
+          directOut.clear();
+        }
+        alloc.end();
+      }
+    }
+    return n;
+  }
+
+  private static long read(Allocation alloc, PackEntry[] targets) throws IOException {
+    ByteBuffer dst = ByteBuffer.wrap(out);
+    long n = 0;
+    alloc.begin();
+    for (PackEntry e : targets) {
+      dst.clear();
+      n += pf.read(e, dst);
+    }
+    alloc.end();
+    return n;
+  }
+
+  private static long createInputStream(Allocation alloc, PackEntry[] targets)
+      throws IOException {
+    long n = 0;
+    alloc.begin();
+    for (PackEntry e : targets) {
+      try (InputStream in = pf.createInputStream(e)) {
+        int r;
+        while ((r = in.read(out)) != -1) {
+          n += r;
+        }
+      }
+    }
+    alloc.end();
+    return n;
+  }
+
+  private static long packInputStream(Allocation alloc) throws IOException {
+    long n = 0;
+    alloc.begin();
+    try (PackInputStream in = new PackInputStream(new ByteArrayInputStream(archiveBytes))) {
+      while (in.getNextEntry() != null) {
+        int r;
+        while ((r = in.read(out)) != -1) {
+          n += r;
+        }
+      }
+    }
+    alloc.end();
+    return n;
+  }
+
+  private static void assertAllocationAtMost(long maxBytesPerEntry, int count, Pass pass)
+      throws IOException {
+    assumeTrue("thread allocation counters are not supported", threads != null);
+    long expected = pass.run(new Allocation());
+    for (int i = 0; i < WARMUP_PASSES; i++) {
+      assertEquals(expected, pass.run(new Allocation()));
+    }
+    // 計測自体の割当てを差し引く
+    Allocation empty = new Allocation();
+    for (int i = 0; i < PASSES; i++) {
+      empty.begin();
+      empty.end();
+    }
+    Allocation alloc = new Allocation();
+    for (int i = 0; i < PASSES; i++) {
+      pass.run(alloc);
+    }
+    long perEntry = Math.max(0, alloc.bytes - empty.bytes) / ((long) PASSES * count);
+    assertTrue(perEntry + " bytes allocated per entry, expected at most " + maxBytesPerEntry,
+        perEntry <= maxBytesPerEntry);
+  }
+
+  private static void assertThroughputAtLeast(double minRatio, double measured, double base) {
+    assertTrue(String.format("%.1f MB/s is %.2fx of %.1f MB/s, expected at least %.2fx",
+        measured, measured / base, base, minRatio), minRatio <= measured / base);
+  }
+
+  // ウォームアップのあと、ROUNDS回に分けて計測した中で最も速かったスループット(MB/s)を返す
+  private static double throughput(Pass pass) throws IOException {
+    for (int i = 0; i < WARMUP_PASSES; i++) {
+      pass.run(new Allocation());
+    }
+    double best = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      long bytes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < PASSES / ROUNDS; i++) {
+        bytes += pass.run(new Allocation());
+      }
+      long nanos = System.nanoTime() - start;
+      best = Math.max(best, bytes / (nanos / 1e9) / (1 << 20));
+    }
+    return best;
+  }
+
+  @SuppressWarnings("deprecation")
+  private static long allocated() {
+    return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}